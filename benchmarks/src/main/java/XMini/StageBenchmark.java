@@ -0,0 +1,88 @@
+package XMini;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Benchmarks the lexer, the parser and the interpreter on their own, each on the output of the previous stage, and
+ * the three of them together the way a file is run. `nodes` runs the same program again and again on the tree of a
+ * NodeInterpreter, as a hot script would. Program output goes to a discarding OutputSink, so the numbers do not depend
+ * on the terminal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xss16m")
+public class StageBenchmark {
+    @Param({"DEEP", "VARIABLES", "OUTPUT"})
+    Workload.Shape shape;
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    Workload.Size size;
+
+    private String source;
+    private List<Token> tokens;
+    private List<Expr.Statement> statements;
+    private NodeInterpreter nodes;
+
+    @Setup
+    public void setup() {
+        source = Workload.generate(shape, size);
+        tokens = new Lexer(source).getTokens();
+        statements = new Parser(tokens).parse();
+        nodes = new NodeInterpreter(new Parser(tokens).parse());
+    }
+
+    @Benchmark
+    public List<Token> lex() {
+        return new Lexer(source).getTokens();
+    }
+
+    @Benchmark
+    public List<Expr.Statement> parse() {
+        return new Parser(tokens).parse();
+    }
+
+    @Benchmark
+    public Interpreter interpret() {
+        Interpreter interpreter = new Interpreter(discard());
+        interpreter.interpret(statements);
+        return interpreter;
+    }
+
+    @Benchmark
+    public NodeInterpreter nodes() {
+        nodes.run(discard());
+        return nodes;
+    }
+
+    @Benchmark
+    public Interpreter endToEnd() {
+        Interpreter interpreter = new Interpreter(discard());
+        Parser parser = new Parser(new Lexer(source));
+        Expr.Statement statement;
+        while ((statement = parser.next()) != null) {
+            interpreter.interpret(statement);
+        }
+        return interpreter;
+    }
+
+    private static OutputSink discard() {
+        return new OutputSink(OutputStream.nullOutputStream(), OutputSink.FlushPolicy.SIZE);
+    }
+}
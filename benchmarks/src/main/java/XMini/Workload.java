@@ -0,0 +1,68 @@
+package XMini;
+
+/*
+ * Generates the programs the benchmarks run. Each shape stresses a different part of the pipeline:
+ *    DEEP       few statements with deeply nested prefix expressions
+ *    VARIABLES  a long chain of variables, each defined in terms of the previous one
+ *    OUTPUT     mostly `text` and `output` statements
+ */
+public class Workload {
+    public enum Shape {
+        DEEP,
+        VARIABLES,
+        OUTPUT
+    }
+
+    public enum Size {
+        SMALL(100),
+        MEDIUM(10_000),
+        LARGE(200_000);
+
+        final int statements;
+
+        Size(int statements) {
+            this.statements = statements;
+        }
+    }
+
+    private static final String[] OPERATORS = {"+", "-", "*", "<", ">=", "==", "&&", "||"};
+
+    static String generate(Shape shape, Size size) {
+        StringBuilder sb = new StringBuilder();
+        switch (shape) {
+            case DEEP -> {
+                // depth 10, 100 and 450, so the node count grows with the size like the other shapes
+                int depth = (int) Math.sqrt(size.statements);
+                sb.append("var x 7\n");
+                for (int i = 0; i < size.statements / depth; i++) {
+                    sb.append("output");
+                    for (int j = 0; j < depth; j++) {
+                        sb.append(' ').append(OPERATORS[(i + j) % OPERATORS.length]).append(j % 2 == 0 ? " x" : " 3");
+                    }
+                    sb.append(" 1\n");
+                }
+            }
+            case VARIABLES -> {
+                sb.append("var v0 1\n");
+                for (int i = 1; i < size.statements; i++) {
+                    sb.append("var v").append(i).append(" + v").append(i - 1).append(' ').append(i % 97).append('\n');
+                    if (i % 16 == 0) {
+                        sb.append("set v").append(i / 2).append(" * v").append(i).append(" 3\n");
+                    }
+                }
+                sb.append("output v").append(size.statements - 1).append('\n');
+            }
+            case OUTPUT -> {
+                sb.append("var n 0\n");
+                for (int i = 0; i < size.statements; i++) {
+                    if (i % 2 == 0) {
+                        sb.append("text \"line ").append(i).append("\"\n");
+                    } else {
+                        sb.append("set n + n 1\noutput n\n");
+                    }
+                }
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,268 @@
+package XMini;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/*
+ * A parsed program stored as a few flat arrays instead of a tree of objects, see Parser.parseArena().
+ *
+ * Every token of the program is a node, in prefix order: the keyword of each statement, then its variable name for
+ * var and set, then the nodes of its expression. Since the expression is in prefix order, the left operand of an
+ * operator is always the node right after it, so a node takes one byte for its token type and one int:
+ *    binary operator   the index of its right operand
+ *    number            its value, or the index of its text in the symbols if the text is not that of an int
+ *    string, name      the index of its text in the symbols
+ * Each distinct text is stored once. That is 5 bytes per node, where the tree takes an Expr, a Token and often a
+ * String and an Integer per leaf.
+ *
+ * The accessors walk the arrays directly. statement() builds the usual Expr tree of a single statement, so the
+ * visitors and the engines can run a program statement by statement without ever holding all of its trees.
+ */
+class Arena implements Iterable<Expr.Statement> {
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final byte NUMBER_TEXT = -1;  // a number kept as text, like 007 or one that does not fit in an int
+
+    private byte[] types = new byte[1024];
+    private int[] values = new int[1024];
+    private int nodes = 0;
+    private int[] starts = new int[65];  // the first node of each statement, and the end of the last one
+    private int statements = 0;
+    private String[] symbols = new String[64];
+    private final Map<String, Integer> symbolIndex = new HashMap<>();
+
+    // adding nodes, for the Parser
+
+    // adds the node of a token, returning its index
+    int add(Token token) {
+        if (nodes == types.length) {
+            types = Arrays.copyOf(types, nodes * 2);
+            values = Arrays.copyOf(values, nodes * 2);
+        }
+        TokenType type = token.type();
+        types[nodes] = (byte) type.ordinal();
+        switch (type) {
+            case NUMBER -> {
+                String text = token.text();
+                int value = text.length() <= 10 ? parse(text) : -1;
+                if (value >= 0 && (text.length() == 1 || text.charAt(0) != '0')) {
+                    values[nodes] = value;
+                } else {
+                    types[nodes] = NUMBER_TEXT;
+                    values[nodes] = symbol(text);
+                }
+            }
+            case STRING, IDENTIFIER -> values[nodes] = symbol(token.text());
+            default -> values[nodes] = 0;
+        }
+        return nodes++;
+    }
+
+    // the value of a number of at most 10 digits, -1 if it does not fit in an int
+    private static int parse(String digits) {
+        long value = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            value = value * 10 + (digits.charAt(i) - '0');
+        }
+        return value <= Integer.MAX_VALUE ? (int) value : -1;
+    }
+
+    private int symbol(String text) {
+        Integer index = symbolIndex.get(text);
+        if (index == null) {
+            index = symbolIndex.size();
+            if (index == symbols.length) {
+                symbols = Arrays.copyOf(symbols, index * 2);
+            }
+            symbols[index] = text;
+            symbolIndex.put(text, index);
+        }
+        return index;
+    }
+
+    // the next node added is the right operand of the given binary operator
+    void rightFollows(int operator) {
+        values[operator] = nodes;
+    }
+
+    // the next node added is the keyword of a new statement
+    void startStatement() {
+        if (statements + 1 == starts.length) {
+            starts = Arrays.copyOf(starts, starts.length * 2);
+        }
+        starts[statements] = nodes;
+    }
+
+    void endStatement() {
+        starts[++statements] = nodes;
+    }
+
+    // drops the spare room of the arrays once the program is complete
+    void trim() {
+        types = Arrays.copyOf(types, nodes);
+        values = Arrays.copyOf(values, nodes);
+        starts = Arrays.copyOf(starts, statements + 1);
+        symbols = Arrays.copyOf(symbols, symbolIndex.size());
+    }
+
+    // reading the program
+
+    int size() {
+        return statements;
+    }
+
+    int nodes() {
+        return nodes;
+    }
+
+    TokenType keyword(int statement) {
+        return TYPES[types[starts[statement]]];
+    }
+
+    // the variable name of a var or set statement, null otherwise
+    String name(int statement) {
+        TokenType keyword = keyword(statement);
+        return keyword == TokenType.VAR || keyword == TokenType.SET ? text(starts[statement] + 1) : null;
+    }
+
+    // the first node of the expression of a statement
+    int root(int statement) {
+        TokenType keyword = keyword(statement);
+        return starts[statement] + (keyword == TokenType.VAR || keyword == TokenType.SET ? 2 : 1);
+    }
+
+    ExprType type(int node) {
+        return switch (token(node)) {
+            case NUMBER, STRING -> ExprType.LITERAL;
+            case IDENTIFIER -> ExprType.VARIABLE;
+            case BANG, TILDE -> ExprType.UNARY;
+            default -> ExprType.BINARY;
+        };
+    }
+
+    // the type of the token of a node
+    TokenType token(int node) {
+        byte type = types[node];
+        return type == NUMBER_TEXT ? TokenType.NUMBER : TYPES[type];
+    }
+
+    int left(int node) {
+        return node + 1;
+    }
+
+    int right(int node) {
+        return values[node];
+    }
+
+    // the text of the token of a node
+    String text(int node) {
+        return switch (token(node)) {
+            case NUMBER -> types[node] == NUMBER_TEXT ? symbols[values[node]] : Integer.toString(values[node]);
+            case STRING, IDENTIFIER -> symbols[values[node]];
+            default -> Lexer.fixed(TYPES[types[node]]).text();
+        };
+    }
+
+    // the value of a literal, like Expr.Literal.constant: null for a number that does not fit in an int
+    Object constant(int node) {
+        return switch (types[node]) {
+            case NUMBER_TEXT -> {
+                try {
+                    yield Integer.parseInt(symbols[values[node]]);
+                } catch (NumberFormatException e) {
+                    yield null;
+                }
+            }
+            default -> token(node) == TokenType.NUMBER ? (Object) values[node] : symbols[values[node]];
+        };
+    }
+
+    // Builds the tree of a statement, with the same tokens as the Parser gives. Each call builds new nodes, for the
+    // Resolver to annotate.
+    Expr.Statement statement(int statement) {
+        TokenType keyword = keyword(statement);
+        Token name = keyword == TokenType.VAR || keyword == TokenType.SET ? tokenOf(starts[statement] + 1) : null;
+        return new Expr.Statement(Lexer.fixed(keyword), name, expr(root(statement), starts[statement + 1]));
+    }
+
+    // Builds the tree of the expression in nodes [root, end) without recursion: in reverse prefix order the operands
+    // of an operator are built before it, and are the last two trees built.
+    private Expr expr(int root, int end) {
+        Expr[] built = new Expr[8];
+        int size = 0;
+        for (int node = end - 1; node >= root; node--) {
+            Expr expr = switch (type(node)) {
+                case LITERAL -> new Expr.Literal(tokenOf(node));
+                case VARIABLE -> new Expr.Variable(tokenOf(node));
+                case UNARY -> new Expr.Arithmetic(tokenOf(node), built[--size], null);
+                case BINARY -> {
+                    Expr left = built[--size];
+                    yield new Expr.Arithmetic(tokenOf(node), left, built[--size]);
+                }
+            };
+            if (size == built.length) {
+                built = Arrays.copyOf(built, size * 2);
+            }
+            built[size++] = expr;
+        }
+        return built[0];
+    }
+
+    private Token tokenOf(int node) {
+        TokenType type = token(node);
+        return switch (type) {
+            case NUMBER, STRING, IDENTIFIER -> new Token(type, text(node));
+            default -> Lexer.fixed(type);
+        };
+    }
+
+    // the tree of each statement in turn, built as the iteration reaches it
+    @Override
+    public Iterator<Expr.Statement> iterator() {
+        return new Iterator<>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < statements;
+            }
+
+            public Expr.Statement next() {
+                if (next == statements) {
+                    throw new NoSuchElementException();
+                }
+                return statement(next++);
+            }
+        };
+    }
+
+    // the trees of all the statements, for the engines that need the whole program at once
+    List<Expr.Statement> statements() {
+        Expr.Statement[] all = new Expr.Statement[statements];
+        for (int i = 0; i < statements; i++) {
+            all[i] = statement(i);
+        }
+        return Arrays.asList(all);
+    }
+
+    // the bytes taken by the arrays and the symbols, assuming compressed references and Latin-1 strings
+    long bytes() {
+        long bytes = array(types.length) + array(4L * values.length) + array(4L * starts.length)
+                + array(4L * symbols.length);
+        for (int i = 0; i < symbolIndex.size(); i++) {
+            bytes += 24 + array(symbols[i].length());
+        }
+        return bytes;
+    }
+
+    private static long array(long bytes) {
+        return (16 + bytes + 7) & ~7;
+    }
+
+    String report() {
+        return String.format("Arena: %d statements, %d nodes, %d symbols in %d bytes, %.1f bytes per node",
+                statements, nodes, symbolIndex.size(), bytes(), nodes == 0 ? 0.0 : (double) bytes() / nodes);
+    }
+}
@@ -0,0 +1,247 @@
+package XMini;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/*
+ * Runs many scripts in one JVM, concurrently, each in its own Interpreter with its own captured output.
+ *
+ * Scripts come from a directory (every *.xmini file in it, by name) or, given `-`, from the paths read one per line
+ * from the standard input as they arrive. Each script runs on a virtual thread when the JVM has them (Java 21 and
+ * later), and on a pool of platform threads otherwise. At most `--window` scripts are in flight, and results are
+ * reported in submission order, so a stream of any length runs in bounded memory.
+ *
+ * A script that fails with a lexer, parser or runtime error, or that runs past the timeout, is reported and the batch
+ * goes on. The timeout is checked between statements: XMini has no loops, so a single statement never runs for long.
+ *
+ * Usage: java XMini.Batch [options] <directory | ->
+ *    --threads=N   number of platform threads if there are no virtual threads (default: number of processors)
+ *    --window=N    maximum number of scripts in flight (default: 4 * threads)
+ *    --timeout=MS  time limit of a script in milliseconds (default: none)
+ *    --output=DIR  write the output of each script to DIR/<script name>.out instead of the standard output
+ *    --restore=F   start every script from the variables of the snapshot in file F (see Snapshot)
+ * Every script gets a status line `<path>: ok|error|timeout (<time> ms)` on the standard output, followed by its
+ * output unless --output is given. Warnings and a summary with throughput and latency percentiles go to stderr.
+ */
+class Batch {
+    enum Status {
+        OK,
+        ERROR,
+        TIMEOUT
+    }
+
+    record Result(Path script, Status status, String error, List<String> warnings, byte[] output, long waitNanos,
+                  long runNanos) {
+    }
+
+    private final Charset charset = Charset.defaultCharset();
+    private final long timeoutNanos;
+    private final Snapshot baseline;  // shared by all the scripts, which copy it on write
+
+    // metrics, only touched by the thread reporting the results
+    private final int[] counts = new int[Status.values().length];
+    private long[] runTimes = new long[1024];
+    private long[] latencies = new long[1024];
+    private int reported = 0;
+
+    Batch(long timeoutMillis, Snapshot baseline) {
+        this.timeoutNanos = timeoutMillis * 1_000_000;
+        this.baseline = baseline;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int window = 0;
+        long timeout = 0;
+        Path output = null;
+        Snapshot baseline = null;
+        String source = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(value);
+            } else if (arg.startsWith("--window=")) {
+                window = Integer.parseInt(value);
+            } else if (arg.startsWith("--timeout=")) {
+                timeout = Long.parseLong(value);
+            } else if (arg.startsWith("--output=")) {
+                output = Paths.get(value);
+            } else if (arg.startsWith("--restore=")) {
+                baseline = Snapshot.read(Paths.get(value));
+            } else if (source == null && (arg.equals("-") || !arg.startsWith("--"))) {
+                source = arg;
+            } else {
+                source = null;
+                break;
+            }
+        }
+        if (source == null || threads < 1 || window < 0 || timeout < 0) {
+            System.out.println("Usage: java XMini.Batch [--threads=N] [--window=N] [--timeout=MS] [--output=DIR] "
+                    + "[--restore=FILE] <directory | ->");
+            System.exit(1);
+        }
+        if (output != null) {
+            Files.createDirectories(output);
+        }
+
+        Batch batch = new Batch(timeout, baseline);
+        ExecutorService executor = executor(threads);
+        long start = System.nanoTime();
+        try (Stream<Path> scripts = scripts(source)) {
+            batch.run(scripts, executor, window == 0 ? 4 * threads : window, output);
+        } finally {
+            executor.shutdown();
+        }
+        batch.summary(System.nanoTime() - start);
+    }
+
+    // a virtual thread per script where available, a fixed pool of platform threads otherwise
+    private static ExecutorService executor(int threads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    private static Stream<Path> scripts(String source) throws IOException {
+        if (source.equals("-")) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+            return in.lines().filter(line -> !line.isBlank()).map(line -> Paths.get(line.strip()));
+        }
+        return Files.list(Paths.get(source))
+                .filter(path -> path.getFileName().toString().endsWith(".xmini") && Files.isRegularFile(path))
+                .sorted();
+    }
+
+    void run(Stream<Path> scripts, ExecutorService executor, int window, Path output) throws InterruptedException {
+        ArrayDeque<Future<Result>> inFlight = new ArrayDeque<>(window);
+        for (Path script : (Iterable<Path>) scripts::iterator) {
+            long submitted = System.nanoTime();
+            inFlight.add(executor.submit(() -> run(script, submitted)));
+            if (inFlight.size() >= window) {
+                report(inFlight.remove(), output);
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            report(inFlight.remove(), output);
+        }
+    }
+
+    // runs one script to completion, turning every failure into a result
+    Result run(Path script, long submitted) {
+        long started = System.nanoTime();
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        OutputSink out = new OutputSink(captured, OutputSink.FlushPolicy.END);
+        List<String> warnings = new ArrayList<>();
+        Status status = Status.OK;
+        String error = null;
+        try (Reader reader = new MappedFileReader(script, charset)) {
+            Interpreter interpreter = new Interpreter(out, baseline, warnings::add);
+            Parser parser = new Parser(new Lexer(reader));
+            Expr.Statement statement;
+            while ((statement = parser.next()) != null) {
+                if (timeoutNanos > 0 && System.nanoTime() - started > timeoutNanos) {
+                    status = Status.TIMEOUT;
+                    break;
+                }
+                interpreter.interpret(statement);
+            }
+        } catch (NoSuchFileException e) {
+            status = Status.ERROR;
+            error = "No such file";
+        } catch (IOException e) {
+            status = Status.ERROR;
+            error = "Cannot read the script: " + e.getMessage();
+        } catch (RuntimeException | StackOverflowError e) {
+            status = Status.ERROR;
+            error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+        out.flush();
+        return new Result(script, status, error, warnings, captured.toByteArray(), started - submitted,
+                System.nanoTime() - started);
+    }
+
+    private void report(Future<Result> future, Path output) throws InterruptedException {
+        Result result;
+        try {
+            result = future.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Batch aborted", e.getCause());
+        }
+        record(result);
+
+        StringBuilder line = new StringBuilder().append(result.script()).append(": ")
+                .append(result.status().name().toLowerCase())
+                .append(String.format(" (%.3f ms)", result.runNanos() / 1e6));
+        if (result.error() != null) {
+            line.append(' ').append(result.error());
+        }
+        System.out.println(line);
+        for (String warning : result.warnings()) {
+            System.err.println(result.script() + ": Warning: " + warning);
+        }
+        if (output == null) {
+            System.out.write(result.output(), 0, result.output().length);
+        } else {
+            Path file = output.resolve(result.script().getFileName() + ".out");
+            try (OutputStream out = Files.newOutputStream(file)) {
+                out.write(result.output());
+            } catch (IOException e) {
+                System.err.println("Warning: cannot write " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void record(Result result) {
+        counts[result.status().ordinal()]++;
+        if (reported == runTimes.length) {
+            runTimes = Arrays.copyOf(runTimes, reported * 2);
+            latencies = Arrays.copyOf(latencies, reported * 2);
+        }
+        runTimes[reported] = result.runNanos();
+        latencies[reported] = result.waitNanos() + result.runNanos();
+        reported++;
+    }
+
+    void summary(long elapsedNanos) {
+        System.out.flush();
+        System.err.printf("Scripts: %d (%d ok, %d errors, %d timeouts) in %.3f s, %.1f scripts/s%n", reported,
+                counts[Status.OK.ordinal()], counts[Status.ERROR.ordinal()], counts[Status.TIMEOUT.ordinal()],
+                elapsedNanos / 1e9, reported / (elapsedNanos / 1e9));
+        if (reported > 0) {
+            System.err.println("Run time (ms): " + percentiles(runTimes, reported));
+            System.err.println("Latency (ms):  " + percentiles(latencies, reported));
+        }
+    }
+
+    // p50, p90, p99 and max of the first count values
+    static String percentiles(long[] values, int count) {
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return String.format("p50 %.3f  p90 %.3f  p99 %.3f  max %.3f", percentile(sorted, 50) / 1e6,
+                percentile(sorted, 90) / 1e6, percentile(sorted, 99) / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[(int) Math.ceil(percent / 100.0 * sorted.length) - 1];
+    }
+}
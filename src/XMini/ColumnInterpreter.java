@@ -0,0 +1,526 @@
+package XMini;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/*
+ * Runs one program over many records at once, instead of once per record.
+ *
+ * The input variables are bound to int columns, one value per record, and are defined before the program starts, like
+ * the variables of a restored snapshot. Every operator is then applied to whole columns in tight loops that the JIT
+ * compiles to SIMD instructions, and every `text` and `output` statement produces an output column. Records are
+ * processed in chunks of CHUNK rows, so the columns of the variables and of the intermediate results stay in the cache
+ * and are recycled from chunk to chunk.
+ *
+ * Since XMini has no control flow, whether a value is an int or a string never depends on the record: strings only
+ * come from literals. A value is therefore an int[] column, an Integer or a String, the latter two being the same for
+ * every record. Errors that happen for every record, like an undefined variable or a string used as an int, stop all
+ * of them, while a division by zero only stops the records it happens for. Either way a record stops at the same
+ * statement and with the same message as running the program on its own.
+ *
+ * Usage: java XMini.ColumnInterpreter <program> <csv file>
+ *    The first line of the csv file names the input variables, and every other line is a record of ints. Prints the
+ *    output of each record on one line, separated by commas, followed by `error: <message>` if the record failed.
+ */
+class ColumnInterpreter {
+    static final int CHUNK = 4096;
+    private static final int OK = Integer.MAX_VALUE;
+
+    // The output of a run: for each text and output statement in program order an int[] with a value per record, or
+    // the String they all print, and the statement each record stopped at, with the error.
+    record Result(int records, List<Object> outputs, int[] statements, int[] failedAt, String[] errors) {
+        // the lines the program printed for a record
+        List<String> lines(int record) {
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < outputs.size() && statements[i] < failedAt[record]; i++) {
+                Object output = outputs.get(i);
+                lines.add(output instanceof int[] column ? Integer.toString(column[record]) : (String) output);
+            }
+            return lines;
+        }
+
+        // the error that stopped the record, or null
+        String error(int record) {
+            return errors[record];
+        }
+    }
+
+    // the value of an expression, and whether it is a column of its own, which its user may recycle or reuse, rather
+    // than a variable's
+    private record Value(Object value, boolean temporary) {
+    }
+
+    private final Expr.Statement[] statements;
+    private final int inputs;
+    private final int slots;
+    private final int[] outputStatements;
+
+    // the state of a run
+    private final ArrayDeque<int[]> free = new ArrayDeque<>();  // columns of CHUNK ints no longer used
+    private Object[] variables;
+    private int start;  // first record of the chunk
+    private int size;  // number of records in the chunk
+    private int active;  // number of records of the chunk that have not failed
+    private int[] failedAt;
+    private String[] errors;
+
+    // the operators being evaluated, see evaluate()
+    private Expr.Arithmetic[] pending = new Expr.Arithmetic[16];
+    private boolean[] onRight = new boolean[16];
+    private Object[] operands = new Object[16];
+    private boolean[] temporary = new boolean[16];  // whether the operand is a column of its own, not a variable's
+
+    // Resolves the program with the given input variables defined, in slots 0 to inputs.length - 1
+    ColumnInterpreter(List<Expr.Statement> program, String... inputs) {
+        Map<String, Integer> bindings = new HashMap<>();
+        for (int i = 0; i < inputs.length; i++) {
+            if (bindings.put(inputs[i], i) != null) {
+                throw new IllegalArgumentException("Input " + inputs[i] + " is bound twice");
+            }
+        }
+        BitSet defined = new BitSet();
+        defined.set(0, inputs.length);
+        Resolver resolver = new Resolver(new Snapshot(bindings, inputs.clone(), defined, new Object[inputs.length],
+                new int[inputs.length]));
+        resolver.resolve(program);
+
+        this.statements = program.toArray(new Expr.Statement[0]);
+        this.inputs = inputs.length;
+        this.slots = resolver.size();
+        this.outputStatements = IntStream.range(0, statements.length)
+                .filter(i -> statements[i].keyword.type() == TokenType.TEXT
+                        || statements[i].keyword.type() == TokenType.OUTPUT)
+                .toArray();
+    }
+
+    // runs the program once for each record, the columns giving the values of the inputs
+    Result run(int[]... columns) {
+        if (columns.length != inputs) {
+            throw new IllegalArgumentException("Expected " + inputs + " input columns, got " + columns.length);
+        }
+        int records = columns.length == 0 ? 1 : columns[0].length;
+        for (int[] column : columns) {
+            if (column.length != records) {
+                throw new IllegalArgumentException("Input columns differ in length");
+            }
+        }
+        Object[] outputs = new Object[outputStatements.length];
+        failedAt = new int[records];
+        errors = new String[records];
+        Arrays.fill(failedAt, OK);
+        variables = new Object[slots];
+
+        for (start = 0; start < records; start += CHUNK) {
+            size = Math.min(CHUNK, records - start);
+            active = size;
+            for (int i = 0; i < inputs; i++) {
+                int[] column = allocate();
+                System.arraycopy(columns[i], start, column, 0, size);
+                variables[i] = column;
+            }
+            int output = 0;
+            for (int statement = 0; statement < statements.length && active > 0; statement++) {
+                try {
+                    Value value = execute(statements[statement], statement);
+                    if (value != null) {
+                        outputs[output] = store(outputs[output], value, records);
+                    }
+                } catch (RuntimeException e) {
+                    failAll(statement, e.getMessage() != null ? e.getMessage() : e.toString());
+                }
+                if (outputStatements.length > output && outputStatements[output] == statement) {
+                    output++;
+                }
+            }
+            for (int slot = 0; slot < slots; slot++) {
+                release(variables[slot], true);
+                variables[slot] = null;
+            }
+        }
+        Result result = new Result(records, Arrays.asList(outputs), outputStatements, failedAt, errors);
+        failedAt = null;
+        errors = null;
+        variables = null;
+        free.clear();
+        return result;
+    }
+
+    // runs a statement over the chunk, returning the value of a text or output statement
+    private Value execute(Expr.Statement statement, int index) {
+        switch (statement.keyword.type()) {
+            case TEXT, OUTPUT -> {
+                return evaluate(statement.expr, index);
+            }
+            case VAR, SET -> {
+                if (statement.slot == Resolver.UNDEFINED) {
+                    throw new RuntimeException("Variable " + statement.var_name.text() + " not defined");
+                }
+                Value result = evaluate(statement.expr, index);
+                Object value = result.value;
+                if (value instanceof int[] column && !result.temporary) {
+                    // variables own their columns, so that they can be recycled
+                    int[] copy = allocate();
+                    System.arraycopy(column, 0, copy, 0, size);
+                    value = copy;
+                }
+                release(variables[statement.slot], true);
+                variables[statement.slot] = value;
+                return null;
+            }
+            default -> throw new RuntimeException("Unexpected token " + statement.keyword);
+        }
+    }
+
+    // copies the chunk's values of an output statement into its output column
+    private Object store(Object output, Value value, int records) {
+        if (value.value instanceof String text) {
+            return text;
+        }
+        int[] column = output instanceof int[] existing ? existing : new int[records];
+        if (value.value instanceof int[] chunk) {
+            System.arraycopy(chunk, 0, column, start, size);
+            release(chunk, value.temporary);
+        } else {
+            Arrays.fill(column, start, start + size, (Integer) value.value);
+        }
+        return column;
+    }
+
+    // Evaluates an expression over the chunk without recursion, in the same order as Interpreter.evaluate()
+    private Value evaluate(Expr expr, int statement) {
+        int top = 0;
+        Expr node = expr;
+        while (true) {
+            while (node instanceof Expr.Arithmetic arithmetic) {
+                push(top++, arithmetic);
+                node = arithmetic.left;
+            }
+            Object value = leaf(node);
+            boolean valueTemporary = false;
+            while (true) {
+                if (top == 0) {
+                    return new Value(value, valueTemporary);
+                }
+                Expr.Arithmetic operator = pending[top - 1];
+                if (operator.right != null && !onRight[top - 1]) {
+                    onRight[top - 1] = true;
+                    operands[top - 1] = value;
+                    temporary[top - 1] = valueTemporary;
+                    node = operator.right;
+                    break;
+                }
+                top--;
+                Object left = operator.right == null ? value : operands[top];
+                boolean leftTemporary = operator.right == null ? valueTemporary : temporary[top];
+                Object right = operator.right == null ? null : value;
+                boolean rightTemporary = operator.right != null && valueTemporary;
+                operands[top] = null;
+                try {
+                    value = apply(operator.operator.type(), left, leftTemporary, right, statement);
+                } finally {
+                    // apply() reuses a temporary left column for its result
+                    if (right != value) {
+                        release(right, rightTemporary);
+                    }
+                    if (left != value) {
+                        release(left, leftTemporary);
+                    }
+                }
+                valueTemporary = value instanceof int[];
+            }
+        }
+    }
+
+    private Object leaf(Expr node) {
+        if (node instanceof Expr.Literal literal) {
+            // a number that does not fit in an int fails like in the interpreter
+            return literal.constant != null ? literal.constant : Integer.parseInt(literal.value.text());
+        }
+        Expr.Variable variable = (Expr.Variable) node;
+        if (variable.slot < 0) {
+            throw new RuntimeException("Undefined variable " + variable.var_name.text());
+        }
+        return variables[variable.slot];
+    }
+
+    private Object apply(TokenType operator, Object left, boolean leftTemporary, Object right, int statement) {
+        if (operator == TokenType.EQ || operator == TokenType.NEQ) {
+            if (left instanceof String || right instanceof String) {
+                // an int never equals a string
+                return (left.equals(right) == (operator == TokenType.EQ)) ? 1 : 0;
+            }
+        } else if (right instanceof String && !(left instanceof String)
+                && (operator == TokenType.AND || operator == TokenType.OR)) {
+            // the interpreter only casts the right operand when the left one does not decide the result
+            return decidedByLeft(operator == TokenType.AND, left, leftTemporary, Interpreter.castError(right), statement);
+        } else if (left instanceof String || right instanceof String) {
+            throw Interpreter.castError(left instanceof String ? left : right);
+        }
+        if (right == null) {
+            if (left instanceof Integer constant) {
+                return Interpreter.applyInt(operator, constant, 0);
+            }
+            int[] a = (int[]) left;
+            int[] result = leftTemporary ? a : allocate();
+            unary(operator, a, result);
+            return result;
+        }
+        if (left instanceof Integer l && right instanceof Integer r) {
+            return Interpreter.applyInt(operator, l, r);
+        }
+        int[] a = column(left);
+        int[] b = column(right);
+        int[] result = leftTemporary ? a : allocate();
+        binary(operator, a, b, result, statement);
+        if (!(left instanceof int[])) {
+            release(a, true);  // a broadcast constant
+        }
+        if (!(right instanceof int[])) {
+            release(b, true);
+        }
+        return result;
+    }
+
+    // && or || with a string on the right: the records whose left operand does not decide the result fail
+    private Object decidedByLeft(boolean and, Object left, boolean leftTemporary, RuntimeException error,
+                                 int statement) {
+        if (left instanceof Integer l) {
+            if ((l != 0) == and) {
+                throw error;
+            }
+            return and ? 0 : 1;
+        }
+        int[] a = (int[]) left;
+        int[] result = leftTemporary ? a : allocate();
+        for (int i = 0; i < size; i++) {
+            if ((a[i] != 0) == and) {
+                fail(i, statement, error.getMessage());
+            }
+            result[i] = and ? 0 : 1;
+        }
+        return result;
+    }
+
+
+    private static void unary(TokenType operator, int[] a, int[] result) {
+        int size = a.length;
+        switch (operator) {
+            case TILDE -> {
+                for (int i = 0; i < size; i++) {
+                    result[i] = -a[i];
+                }
+            }
+            case BANG -> {
+                for (int i = 0; i < size; i++) {
+                    result[i] = a[i] == 0 ? 1 : 0;
+                }
+            }
+            default -> throw new RuntimeException("Unknown operator: " + operator);
+        }
+    }
+
+    // The loops run over whole columns, including the records that failed or lie past the end of the last chunk:
+    // their values are never used, and a loop without a bound that varies is easier for the JIT to vectorize.
+    private void binary(TokenType operator, int[] a, int[] b, int[] result, int statement) {
+        int size = a.length;
+        switch (operator) {
+            case PLUS -> {
+                for (int i = 0; i < size; i++) {
+                    result[i] = a[i] + b[i];
+                }
+            }
+            case MINUS -> {
+                for (int i = 0; i < size; i++) {
+                    result[i] = a[i] - b[i];
+                }
+            }
+            case MUL -> {
+                for (int i = 0; i < size; i++) {
+                    result[i] = a[i] * b[i];
+                }
+            }
+            case DIV, MOD -> divide(operator == TokenType.DIV, a, b, result, statement);
+            case AND -> {
+                for (int i = 0; i < size; i++) {
+                    result[i] = (a[i] != 0 & b[i] != 0) ? 1 : 0;
+                }
+            }
+            case OR -> {
+                for (int i = 0; i < size; i++) {
+                    result[i] = (a[i] | b[i]) != 0 ? 1 : 0;
+                }
+            }
+            case EQ -> {
+                for (int i = 0; i < size; i++) {
+                    result[i] = a[i] == b[i] ? 1 : 0;
+                }
+            }
+            case NEQ -> {
+                for (int i = 0; i < size; i++) {
+                    result[i] = a[i] != b[i] ? 1 : 0;
+                }
+            }
+            case GT -> {
+                for (int i = 0; i < size; i++) {
+                    result[i] = a[i] > b[i] ? 1 : 0;
+                }
+            }
+            case LT -> {
+                for (int i = 0; i < size; i++) {
+                    result[i] = a[i] < b[i] ? 1 : 0;
+                }
+            }
+            case GTE -> {
+                for (int i = 0; i < size; i++) {
+                    result[i] = a[i] >= b[i] ? 1 : 0;
+                }
+            }
+            case LTE -> {
+                for (int i = 0; i < size; i++) {
+                    result[i] = a[i] <= b[i] ? 1 : 0;
+                }
+            }
+            default -> throw new RuntimeException("Unknown operator: " + operator);
+        }
+    }
+
+    // division and remainder, failing the records of the chunk that divide by zero
+    private void divide(boolean quotient, int[] a, int[] b, int[] result, int statement) {
+        for (int i = 0; i < size; i++) {
+            int divisor = b[i];
+            if (divisor == 0) {
+                fail(i, statement, "/ by zero");
+                result[i] = 0;
+            } else {
+                result[i] = quotient ? a[i] / divisor : a[i] % divisor;
+            }
+        }
+    }
+
+    // the value as a column, broadcasting a constant
+    private int[] column(Object value) {
+        if (value instanceof int[] column) {
+            return column;
+        }
+        int[] column = allocate();
+        Arrays.fill(column, (Integer) value);
+        return column;
+    }
+
+    private int[] allocate() {
+        int[] column = free.poll();
+        return column != null ? column : new int[CHUNK];
+    }
+
+    private void release(Object value, boolean temporary) {
+        if (temporary && value instanceof int[] column) {
+            free.push(column);
+        }
+    }
+
+    // the record of the chunk stops at the statement, unless it failed before
+    private void fail(int row, int statement, String message) {
+        int record = start + row;
+        if (failedAt[record] == OK) {
+            failedAt[record] = statement;
+            errors[record] = message;
+            active--;
+        }
+    }
+
+    private void failAll(int statement, String message) {
+        for (int row = 0; row < size; row++) {
+            fail(row, statement, message);
+        }
+    }
+
+    private void push(int index, Expr.Arithmetic operator) {
+        if (index == pending.length) {
+            pending = Arrays.copyOf(pending, index * 2);
+            onRight = Arrays.copyOf(onRight, index * 2);
+            operands = Arrays.copyOf(operands, index * 2);
+            temporary = Arrays.copyOf(temporary, index * 2);
+        }
+        pending[index] = operator;
+        onRight[index] = false;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: java XMini.ColumnInterpreter <program> <csv file>");
+            System.exit(1);
+        }
+        Charset charset = Charset.defaultCharset();
+        List<Expr.Statement> program = new Parser(Lexer.ofFile(Paths.get(args[0]), charset)).parse();
+        String[] names;
+        int[][] columns;
+        try (BufferedReader in = Files.newBufferedReader(Path.of(args[1]), charset)) {
+            String header = in.readLine();
+            names = header == null || header.isBlank() ? new String[0] : header.strip().split("\\s*,\\s*");
+            columns = new int[names.length][1024];
+            int records = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                String[] fields = line.strip().split("\\s*,\\s*");
+                if (fields.length != names.length) {
+                    throw new IOException("Record " + (records + 1) + " has " + fields.length + " fields, expected "
+                            + names.length);
+                }
+                if (records == columns[0].length) {
+                    for (int i = 0; i < columns.length; i++) {
+                        columns[i] = Arrays.copyOf(columns[i], records * 2);
+                    }
+                }
+                for (int i = 0; i < fields.length; i++) {
+                    columns[i][records] = Integer.parseInt(fields[i]);
+                }
+                records++;
+            }
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = Arrays.copyOf(columns[i], records);
+            }
+        }
+
+        long started = System.nanoTime();
+        Result result = new ColumnInterpreter(program, names).run(columns);
+        long elapsed = System.nanoTime() - started;
+
+        OutputSink out = OutputSink.stdout(OutputSink.FlushPolicy.SIZE);
+        StringBuilder line = new StringBuilder();
+        for (int record = 0; record < result.records(); record++) {
+            line.setLength(0);
+            for (String output : result.lines(record)) {
+                line.append(line.length() == 0 ? "" : ",").append(csv(output));
+            }
+            if (result.error(record) != null) {
+                line.append(line.length() == 0 ? "" : ",").append(csv("error: " + result.error(record)));
+            }
+            out.println(line.toString());
+        }
+        out.flush();
+        System.err.printf("Records: %d in %.3f ms, %.1f records/s%n", result.records(), elapsed / 1e6,
+                result.records() / (elapsed / 1e9));
+    }
+
+    private static String csv(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0) {
+            return field;
+        }
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+}
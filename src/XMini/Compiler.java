@@ -0,0 +1,555 @@
+package XMini;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/*
+ * Compiles a parsed XMini program into a JVM class instead of walking the Expr tree.
+ *
+ * XMini has no control flow, so the type (int or string) and the definedness of every variable is known statically
+ * at every point of the program. Each variable becomes a static int field and/or a static String field of the
+ * generated class, and arithmetic is emitted as native int instructions. Runtime errors of the interpreter (undefined
+ * variables, division by zero, casting a string to an int) are reproduced by the generated code at the same point.
+ *
+ * The statements are split into several static methods so that each of them stays below the size HotSpot is willing
+ * to JIT compile. We emit class file version 49 so that no StackMapTable has to be computed.
+ */
+public class Compiler {
+    static class CompileException extends RuntimeException {
+        CompileException(String message) {
+            super(message);
+        }
+    }
+
+    private enum Kind {
+        INT,
+        STRING
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Interpreter.class.getName());
+    private static final String CLASS_NAME = "XMini/CompiledProgram";
+    private static final String SINK = "LXMini/OutputSink;";
+    private static final int MAX_METHOD_SIZE = 8000;  // HotSpot does not compile larger methods
+    private static final int MAX_DEPTH = 1000;  // deeper expressions would overflow the Java stack of emit
+
+    private final ConstantPool pool = new ConstantPool();
+    private final List<Code> methods = new ArrayList<>();
+    private final Map<String, Integer> variables = new HashMap<>();
+    private final Map<String, Kind> kinds = new HashMap<>();
+    private final List<String> fields = new ArrayList<>();
+    private Code code;
+
+    public Runnable compile(List<Expr.Statement> statements) {
+        return compile(statements, new OutputSink(System.out, OutputSink.FlushPolicy.LINE));
+    }
+
+    Runnable compile(List<Expr.Statement> statements, OutputSink out) {
+        byte[] bytes = generate(statements);
+        try {
+            var lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            lookup.findStaticSetter(lookup.lookupClass(), "out", OutputSink.class).invoke(out);
+            return (Runnable) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            throw new CompileException("Failed to load compiled program: " + e);
+        }
+    }
+
+    byte[] generate(List<Expr.Statement> statements) {
+        code = new Code();
+        for (Expr.Statement statement : statements) {
+            if (code.size() > MAX_METHOD_SIZE) {
+                finishMethod();
+            }
+            if (!emitStatement(statement)) {
+                // the statement always throws, nothing after it is reachable
+                break;
+            }
+        }
+        finishMethod();
+        return writeClass();
+    }
+
+    // called by the generated code for `var` on an already defined variable
+    static void warnRedefined(String name) {
+        LOGGER.warning("Variable " + name + " already defined");
+    }
+
+    private void finishMethod() {
+        if (code.size() > 65535 - 1) {
+            throw new CompileException("Statement too large to compile");
+        }
+        code.op(0xb1, 0);  // return
+        methods.add(code);
+        code = new Code();
+    }
+
+    private boolean emitStatement(Expr.Statement statement) {
+        String name = statement.var_name == null ? null : statement.var_name.text();
+        switch (statement.keyword.type()) {
+            case TEXT, OUTPUT -> {
+                code.op(0xb2, 1);  // getstatic
+                code.u2(pool.field(CLASS_NAME, "out", SINK));
+                Kind kind = emit(statement.expr);
+                if (kind == null) {
+                    return false;
+                }
+                code.op(0xb6, -2);  // invokevirtual
+                code.u2(pool.method("XMini/OutputSink", "println", kind == Kind.INT ? "(I)V" : "(Ljava/lang/String;)V"));
+            }
+            case VAR -> {
+                if (kinds.containsKey(name)) {
+                    emitLdc(name);
+                    code.op(0xb8, -1);  // invokestatic
+                    code.u2(pool.method("XMini/Compiler", "warnRedefined", "(Ljava/lang/String;)V"));
+                }
+                Kind kind = emit(statement.expr);
+                if (kind == null) {
+                    return false;
+                }
+                store(name, kind);
+            }
+            case SET -> {
+                if (!kinds.containsKey(name)) {
+                    emitThrow("Variable " + name + " not defined");
+                    return false;
+                }
+                Kind kind = emit(statement.expr);
+                if (kind == null) {
+                    return false;
+                }
+                store(name, kind);
+            }
+            default -> {
+                emitThrow("Unexpected token " + statement.keyword);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Emits the code for an expression and returns the kind of the value it leaves on the stack,
+    // or null if the expression always throws.
+    private Kind emit(Expr expr) {
+        return emit(expr, 0);
+    }
+
+    private Kind emit(Expr expr, int depth) {
+        if (expr instanceof Expr.Literal literal) {
+            if (literal.value.type() == TokenType.STRING) {
+                emitLdc(literal.value.text());
+                return Kind.STRING;
+            }
+            try {
+                emitInt(Integer.parseInt(literal.value.text()));
+            } catch (NumberFormatException e) {
+                // let Integer.parseInt throw the same exception at runtime
+                emitLdc(literal.value.text());
+                code.op(0xb8, 0);  // invokestatic
+                code.u2(pool.method("java/lang/Integer", "parseInt", "(Ljava/lang/String;)I"));
+            }
+            return Kind.INT;
+        } else if (expr instanceof Expr.Variable variable) {
+            String name = variable.var_name.text();
+            Kind kind = kinds.get(name);
+            if (kind == null) {
+                emitThrow("Undefined variable " + name);
+                return null;
+            }
+            code.op(0xb2, 1);  // getstatic
+            code.u2(fieldRef(name, kind));
+            return kind;
+        } else if (expr instanceof Expr.Arithmetic arithmetic) {
+            if (depth == MAX_DEPTH) {
+                throw new CompileException("Expression nested too deeply to compile");
+            }
+            return emitArithmetic(arithmetic, depth + 1);
+        }
+        throw new CompileException("Unknown expression " + expr);
+    }
+
+    private Kind emitArithmetic(Expr.Arithmetic expr, int depth) {
+        Kind left = emit(expr.left, depth);
+        if (left == null) {
+            return null;
+        }
+        TokenType type = expr.operator.type();
+        if (type == TokenType.TILDE || type == TokenType.BANG) {
+            if (left == Kind.STRING) {
+                emitCastFailure();
+                return null;
+            }
+            if (type == TokenType.TILDE) {
+                code.op(0x74, 0);  // ineg
+            } else {
+                emitCondition(0x99, 1);  // ifeq
+            }
+            return Kind.INT;
+        }
+        Kind right = emit(expr.right, depth);
+        if (right == null) {
+            return null;
+        }
+
+        if (type == TokenType.EQ || type == TokenType.NEQ) {
+            if (left == Kind.INT && right == Kind.INT) {
+                emitCondition(type == TokenType.EQ ? 0x9f : 0xa0, 2);  // if_icmpeq, if_icmpne
+            } else if (left == Kind.STRING && right == Kind.STRING) {
+                code.op(0xb6, -1);  // invokevirtual
+                code.u2(pool.method("java/lang/Object", "equals", "(Ljava/lang/Object;)Z"));
+                if (type == TokenType.NEQ) {
+                    code.op(0x04, 1);  // iconst_1
+                    code.op(0x82, -1);  // ixor
+                }
+            } else {
+                // an Integer never equals a String
+                code.op(0x57, -1);  // pop
+                code.op(0x57, -1);
+                emitInt(type == TokenType.EQ ? 0 : 1);
+            }
+            return Kind.INT;
+        }
+
+        if (left == Kind.STRING) {
+            // the interpreter casts the left operand first
+            code.op(0x57, -1);  // pop
+            emitCastFailure();
+            return null;
+        }
+        if (right == Kind.STRING) {
+            if (type == TokenType.AND || type == TokenType.OR) {
+                emitShortCircuitFailure(type == TokenType.AND);
+                return Kind.INT;
+            }
+            emitCastFailure();
+            return null;
+        }
+
+        switch (type) {
+            case PLUS -> code.op(0x60, -1);  // iadd
+            case MINUS -> code.op(0x64, -1);  // isub
+            case MUL -> code.op(0x68, -1);  // imul
+            case DIV -> code.op(0x6c, -1);  // idiv
+            case MOD -> code.op(0x70, -1);  // irem
+            case AND, OR -> {
+                emitCondition(0x9a, 1);  // ifne
+                code.op(0x5f, 0);  // swap
+                emitCondition(0x9a, 1);
+                code.op(type == TokenType.AND ? 0x7e : 0x80, -1);  // iand, ior
+            }
+            case GT -> emitCondition(0xa3, 2);  // if_icmpgt
+            case LT -> emitCondition(0xa1, 2);  // if_icmplt
+            case GTE -> emitCondition(0xa2, 2);  // if_icmpge
+            case LTE -> emitCondition(0xa4, 2);  // if_icmple
+            default -> throw new CompileException("Unknown operator: " + type);
+        }
+        return Kind.INT;
+    }
+
+    // Pops `operands` values, tests them with the given branch opcode and pushes 1 or 0.
+    private void emitCondition(int opcode, int operands) {
+        code.op(opcode, -operands);
+        code.u2(7);
+        code.op(0x03, 1);  // iconst_0
+        code.op(0xa7, 0);  // goto
+        code.u2(4);
+        code.stack--;  // only one of the two constants ends up on the stack
+        code.op(0x04, 1);  // iconst_1
+    }
+
+    // `&& int string` and `|| int string`: Java's short circuit means the interpreter only casts the string
+    // when the left operand does not already decide the result.
+    private void emitShortCircuitFailure(boolean and) {
+        code.op(0x5f, 0);  // swap
+        code.op(and ? 0x9a : 0x99, -1);  // ifne, ifeq
+        code.u2(8);
+        code.op(0x57, -1);  // pop
+        code.op(and ? 0x03 : 0x04, 1);  // iconst_0, iconst_1
+        code.op(0xa7, 0);  // goto
+        code.u2(9);
+        emitCastFailure();
+        code.stack++;  // the result pushed by the successful path
+    }
+
+    // Casts the String on top of the stack to Integer, which always throws a ClassCastException
+    private void emitCastFailure() {
+        code.op(0xc0, 0);  // checkcast
+        code.u2(pool.classRef("java/lang/Integer"));
+        code.op(0x57, -1);  // pop
+        code.op(0x01, 1);  // aconst_null
+        code.op(0xbf, -1);  // athrow
+    }
+
+    private void emitThrow(String message) {
+        code.op(0xbb, 1);  // new
+        code.u2(pool.classRef("java/lang/RuntimeException"));
+        code.op(0x59, 1);  // dup
+        emitLdc(message);
+        code.op(0xb7, -2);  // invokespecial
+        code.u2(pool.method("java/lang/RuntimeException", "<init>", "(Ljava/lang/String;)V"));
+        code.op(0xbf, -1);  // athrow
+    }
+
+    private void emitInt(int value) {
+        if (value >= -1 && value <= 5) {
+            code.op(0x03 + value, 1);  // iconst_<n>
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.op(0x10, 1);  // bipush
+            code.u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.op(0x11, 1);  // sipush
+            code.u2(value);
+        } else {
+            emitLdc(pool.integer(value));
+        }
+    }
+
+    private void emitLdc(String value) {
+        if (value.getBytes(StandardCharsets.UTF_8).length > 65535) {
+            throw new CompileException("String literal too long to compile");
+        }
+        emitLdc(pool.string(value));
+    }
+
+    private void emitLdc(int index) {
+        if (index < 256) {
+            code.op(0x12, 1);  // ldc
+            code.u1(index);
+        } else {
+            code.op(0x13, 1);  // ldc_w
+            code.u2(index);
+        }
+    }
+
+    private void store(String name, Kind kind) {
+        kinds.put(name, kind);
+        code.op(0xb3, -1);  // putstatic
+        code.u2(fieldRef(name, kind));
+    }
+
+    private int fieldRef(String name, Kind kind) {
+        int index = variables.computeIfAbsent(name, n -> variables.size());
+        String field = (kind == Kind.INT ? "i" : "s") + index;
+        if (!fields.contains(field)) {
+            fields.add(field);
+        }
+        return pool.field(CLASS_NAME, field, descriptor(field));
+    }
+
+    private static String descriptor(String field) {
+        return field.charAt(0) == 'i' ? "I" : "Ljava/lang/String;";
+    }
+
+    private byte[] writeClass() {
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int runnable = pool.classRef("java/lang/Runnable");
+        int codeName = pool.utf8("Code");
+        int objectInit = pool.method("java/lang/Object", "<init>", "()V");
+        List<Integer> methodRefs = new ArrayList<>();
+        for (int i = 0; i < methods.size(); i++) {
+            methodRefs.add(pool.method(CLASS_NAME, "s" + i, "()V"));
+        }
+        int outName = pool.utf8("out");
+        int outDescriptor = pool.utf8(SINK);
+        for (String field : fields) {
+            pool.utf8(field);
+            pool.utf8(descriptor(field));
+        }
+        int init = pool.utf8("<init>");
+        int run = pool.utf8("run");
+        int voidDescriptor = pool.utf8("()V");
+        for (int i = 0; i < methods.size(); i++) {
+            pool.utf8("s" + i);
+        }
+
+        try {
+            var bytes = new ByteArrayOutputStream();
+            var out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            pool.write(out);
+            out.writeShort(0x0031);  // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(runnable);
+
+            out.writeShort(fields.size() + 1);
+            out.writeShort(0x0008 | 0x0002);  // private static, set when the class is loaded
+            out.writeShort(outName);
+            out.writeShort(outDescriptor);
+            out.writeShort(0);
+            for (String field : fields) {
+                out.writeShort(0x0008 | 0x0002);  // private static
+                out.writeShort(pool.utf8(field));
+                out.writeShort(pool.utf8(descriptor(field)));
+                out.writeShort(0);
+            }
+
+            out.writeShort(2 + methods.size());
+            Code constructor = new Code();
+            constructor.op(0x2a, 1);  // aload_0
+            constructor.op(0xb7, -1);  // invokespecial
+            constructor.u2(objectInit);
+            constructor.op(0xb1, 0);
+            writeMethod(out, 0x0001, init, voidDescriptor, codeName, constructor, 1);
+
+            Code runner = new Code();
+            for (int ref : methodRefs) {
+                runner.op(0xb8, 0);  // invokestatic
+                runner.u2(ref);
+            }
+            runner.op(0xb1, 0);
+            writeMethod(out, 0x0001, run, voidDescriptor, codeName, runner, 1);
+
+            for (int i = 0; i < methods.size(); i++) {
+                writeMethod(out, 0x0008 | 0x0002, pool.utf8("s" + i), voidDescriptor, codeName, methods.get(i), 0);
+            }
+            out.writeShort(0);  // attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new CompileException(e.getMessage());
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int access, int name, int descriptor, int codeName,
+                                    Code code, int maxLocals) throws IOException {
+        if (code.maxStack > 65535) {
+            throw new CompileException("Expression nested too deeply to compile");
+        }
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.size());
+        out.writeShort(code.maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.size());
+        code.bytes.writeTo(out);
+        out.writeShort(0);  // exception table
+        out.writeShort(0);  // attributes
+    }
+
+    private static class Code {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int stack;
+        int maxStack;
+
+        void op(int opcode, int stackDelta) {
+            bytes.write(opcode);
+            stack += stackDelta;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        void u1(int value) {
+            bytes.write(value);
+        }
+
+        void u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+
+        int size() {
+            return bytes.size();
+        }
+    }
+
+    private static class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            return entry("U" + value, () -> {
+                out.writeByte(1);
+                out.writeUTF(value);
+            });
+        }
+
+        int integer(int value) {
+            return entry("I" + value, () -> {
+                out.writeByte(3);
+                out.writeInt(value);
+            });
+        }
+
+        int string(String value) {
+            int utf8 = utf8(value);
+            return entry("S" + value, () -> {
+                out.writeByte(8);
+                out.writeShort(utf8);
+            });
+        }
+
+        int classRef(String name) {
+            int utf8 = utf8(name);
+            return entry("C" + name, () -> {
+                out.writeByte(7);
+                out.writeShort(utf8);
+            });
+        }
+
+        int field(String owner, String name, String descriptor) {
+            return member(9, owner, name, descriptor);
+        }
+
+        int method(String owner, String name, String descriptor) {
+            return member(10, owner, name, descriptor);
+        }
+
+        private int member(int tag, String owner, String name, String descriptor) {
+            int classIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int nameAndType = entry("N" + name + " " + descriptor, () -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+            return entry("M" + tag + owner + "." + name + descriptor, () -> {
+                out.writeByte(tag);
+                out.writeShort(classIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        private int entry(String key, Writer writer) {
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            if (count >= 65535) {
+                throw new CompileException("Too many constants to compile");
+            }
+            try {
+                writer.write();
+            } catch (IOException e) {
+                throw new CompileException(e.getMessage());
+            }
+            entries.put(key, count);
+            return count++;
+        }
+
+        void write(DataOutputStream target) throws IOException {
+            target.writeShort(count);
+            bytes.writeTo(target);
+        }
+
+        private interface Writer {
+            void write() throws IOException;
+        }
+    }
+}
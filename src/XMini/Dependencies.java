@@ -0,0 +1,160 @@
+package XMini;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Def-use analysis of a resolved program: for every statement, the earlier statements it has to run after.
+ *
+ * Statement j depends on statement i < j when
+ *    - j reads a variable whose last write before j is i (read after write),
+ *    - j writes a variable that i last wrote before j (write after write), or
+ *    - j writes a variable that i reads, with no write in between (write after read).
+ * Variables are identified by the slots the Resolver gave them. References that are not bound to a slot never read
+ * anything, since they fail without looking at the variables. Any order of the statements that respects these edges
+ * computes the same values as running them in program order.
+ *
+ * The edges are kept as successor lists in one array: the statements that depend on statement i are
+ * successor(k) for k in firstSuccessor(i) .. firstSuccessor(i + 1).
+ */
+class Dependencies {
+    private final int[] counts;  // number of statements each statement depends on
+    private final int[] successorStarts;
+    private final int[] successors;
+
+    // scratch state of the analysis
+    private int[] lastWriter = new int[16];
+    private int[] firstReader = new int[16];  // head of the list of statements reading a slot since its last write
+    private int[] readerStatement = new int[64];
+    private int[] nextReader = new int[64];
+    private int readerCount = 0;
+    private int[] edgeFrom = new int[64];
+    private int[] edgeTo = new int[64];
+    private int edgeCount = 0;
+    private int[] lastEdgeTo;  // the last statement an edge from each statement was added for, to skip duplicates
+    private Expr[] stack = new Expr[16];
+
+    Dependencies(List<Expr.Statement> statements) {
+        int size = statements.size();
+        counts = new int[size];
+        lastEdgeTo = new int[size];
+        Arrays.fill(lastEdgeTo, -1);
+        Arrays.fill(lastWriter, -1);
+        Arrays.fill(firstReader, -1);
+        for (int i = 0; i < size; i++) {
+            Expr.Statement statement = statements.get(i);
+            addReads(i, statement.expr);
+            TokenType type = statement.keyword.type();
+            if ((type == TokenType.VAR || type == TokenType.SET) && statement.slot >= 0) {
+                int slot = statement.slot;
+                ensureSlot(slot);
+                addEdge(lastWriter[slot], i);
+                for (int reader = firstReader[slot]; reader >= 0; reader = nextReader[reader]) {
+                    addEdge(readerStatement[reader], i);
+                }
+                lastWriter[slot] = i;
+                firstReader[slot] = -1;
+            }
+        }
+
+        // counting sort of the edges by their source
+        successorStarts = new int[size + 1];
+        for (int e = 0; e < edgeCount; e++) {
+            successorStarts[edgeFrom[e] + 1]++;
+            counts[edgeTo[e]]++;
+        }
+        for (int i = 0; i < size; i++) {
+            successorStarts[i + 1] += successorStarts[i];
+        }
+        successors = new int[edgeCount];
+        int[] next = Arrays.copyOf(successorStarts, size);
+        for (int e = 0; e < edgeCount; e++) {
+            successors[next[edgeFrom[e]]++] = edgeTo[e];
+        }
+        lastWriter = firstReader = readerStatement = nextReader = edgeFrom = edgeTo = lastEdgeTo = null;
+        stack = null;
+    }
+
+    int size() {
+        return counts.length;
+    }
+
+    // number of statements the statement depends on
+    int count(int statement) {
+        return counts[statement];
+    }
+
+    int firstSuccessor(int statement) {
+        return successorStarts[statement];
+    }
+
+    int successor(int index) {
+        return successors[index];
+    }
+
+    // adds the edges for the variables read by the expression, and records the statement as a reader of them
+    private void addReads(int statement, Expr expr) {
+        int size = 0;
+        Expr node = expr;
+        while (true) {
+            if (node instanceof Expr.Arithmetic arithmetic) {
+                if (arithmetic.right != null) {
+                    if (size == stack.length) {
+                        stack = Arrays.copyOf(stack, size * 2);
+                    }
+                    stack[size++] = arithmetic.right;
+                }
+                node = arithmetic.left;
+                continue;
+            }
+            if (node instanceof Expr.Variable variable && variable.slot >= 0) {
+                int slot = variable.slot;
+                ensureSlot(slot);
+                addEdge(lastWriter[slot], statement);
+                if (firstReader[slot] < 0 || readerStatement[firstReader[slot]] != statement) {
+                    addReader(slot, statement);
+                }
+            }
+            if (size == 0) {
+                return;
+            }
+            node = stack[--size];
+            stack[size] = null;
+        }
+    }
+
+    private void addReader(int slot, int statement) {
+        if (readerCount == readerStatement.length) {
+            readerStatement = Arrays.copyOf(readerStatement, readerCount * 2);
+            nextReader = Arrays.copyOf(nextReader, readerCount * 2);
+        }
+        readerStatement[readerCount] = statement;
+        nextReader[readerCount] = firstReader[slot];
+        firstReader[slot] = readerCount++;
+    }
+
+    private void addEdge(int from, int to) {
+        if (from < 0 || from == to || lastEdgeTo[from] == to) {
+            return;
+        }
+        lastEdgeTo[from] = to;
+        if (edgeCount == edgeFrom.length) {
+            edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+            edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+        }
+        edgeFrom[edgeCount] = from;
+        edgeTo[edgeCount] = to;
+        edgeCount++;
+    }
+
+    private void ensureSlot(int slot) {
+        if (slot >= lastWriter.length) {
+            int size = Math.max(lastWriter.length * 2, slot + 1);
+            int old = lastWriter.length;
+            lastWriter = Arrays.copyOf(lastWriter, size);
+            firstReader = Arrays.copyOf(firstReader, size);
+            Arrays.fill(lastWriter, old, size, -1);
+            Arrays.fill(firstReader, old, size, -1);
+        }
+    }
+}
@@ -27,6 +27,7 @@ abstract class Expr {
         final Token keyword;
         final Token var_name;
         final Expr expr;
+        int slot = Resolver.UNRESOLVED;  // set by the Resolver for var and set
         Statement(Token keyword, Token var_name, Expr expr) {
             this.keyword = keyword;
             this.var_name = var_name;
@@ -44,6 +45,7 @@ abstract class Expr {
         final Token operator;
         final Expr left;
         final Expr right;
+        int memo = -1;  // set by Subexpressions for subtrees that occur more than once
         Arithmetic(Token operator, Expr left, Expr right) {
             this.operator = operator;
             this.left = left;
@@ -57,8 +59,21 @@ abstract class Expr {
 
     static class Literal extends Expr {
         final Token value;  // String or Integer
+        final Object constant;  // the parsed value, null if the number does not fit in an int
         Literal(Token value) {
             this.value = value;
+            this.constant = parse(value);
+        }
+
+        private static Object parse(Token value) {
+            if (value.type() != TokenType.NUMBER) {
+                return value.text();
+            }
+            try {
+                return Integer.parseInt(value.text());
+            } catch (NumberFormatException e) {
+                return null;
+            }
         }
 
         <R> R accept(Visitor<R> visitor) {
@@ -68,6 +83,7 @@ abstract class Expr {
     
     static class Variable extends Expr {
         final Token var_name;
+        int slot = Resolver.UNRESOLVED;  // set by the Resolver
         Variable(Token var_name) {
             this.var_name = var_name;
         }
@@ -0,0 +1,374 @@
+package XMini;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Generates large, valid XMini programs for scale and stress testing, together with their expected output.
+ *
+ * The output is computed while generating, by evaluating every expression with plain Java int arithmetic, so it does
+ * not depend on any of the engines. Programs never fail at runtime: variables are defined before they are used and
+ * never redefined, and divisors are never zero. Both files are streamed, so the size of a program is only limited by
+ * the disk, and expressions are built without recursion, so they can be nested arbitrarily deep.
+ *
+ * An expression is a spine: an operand nested in as many operators as its depth, each with a leaf as its other operand.
+ * With --branching, the other operand of a binary operator is instead, with the given probability, a spine of its own
+ * as deep as the operand it is paired with. 0 gives one spine per expression, 100 gives complete binary trees of up to
+ * 2^depth operators. Any branching makes the size grow exponentially with the depth, so it is meant for small depths.
+ *
+ * Usage: java XMini.Generator [options] <program file> <expected output file>
+ *    --seed=N        seed of the random generator (default 1), the same seed always gives the same program
+ *    --statements=N  number of statements (default 1000)
+ *    --variables=N   maximum number of distinct variable names (default 100)
+ *    --depth=N       maximum nesting depth of an expression; the depth of each one is uniform in [0, N] (default 8)
+ *    --branching=P   percentage of binary operators whose other operand is a subtree (default 0)
+ *    --operators=L   the operators to pick from, separated by commas, e.g. `+,*,*,~`; an operator listed twice is
+ *                    picked twice as often. Unary ones are picked for one level in 8, or every level if no binary one
+ *                    is listed (default all of them).
+ *                    A `/` or `%` whose divisor is 0 becomes a `+`
+ *    --outputs=P     percentage of `output` statements (default 30)
+ *    --texts=P       percentage of `text` statements (default 10)
+ *    --comments=P    percentage of comment lines (default 5)
+ * The remaining statements are `var` (while there are names left) and `set`.
+ */
+class Generator {
+    private static final String[] BINARY = {"+", "-", "*", "/", "%", "&&", "||", "==", "!=", "<", ">", "<=", ">="};
+    private static final String[] UNARY = {"~", "!"};
+    private static final String[] WORDS = {"alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta", "theta"};
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final Random random;
+    private final int statements;
+    private final int variables;
+    private final int depth;
+    private final int branching;
+    private final int[] binary;  // the operators to pick from, as indexes into BINARY and UNARY
+    private final int[] unary;
+    private final int outputs;
+    private final int texts;
+    private final int comments;
+
+    private int[] values = new int[16];  // value of variable i, named by name(i)
+    private int defined = 0;
+
+    // one level of the expression being generated, from the outermost (0) to the innermost
+    private byte[] operators = new byte[16];  // index into BINARY, or -1 - index into UNARY
+    private boolean[] nestedLeft = new boolean[16];  // whether the rest of the expression is the left operand
+    private int[] operands = new int[16];  // the other operand: a literal, or -1 - a variable index
+    private String[] subtrees = new String[16];  // or the text of a subtree, if not null
+
+    // the spines being generated, the outermost first, see expression()
+    private int[] bases = new int[4];  // where the levels of the spine start in the arrays above
+    private int[] levelCounts = new int[4];
+    private int[] nextLevels = new int[4];  // the level to pick next, counting from the innermost out
+    private int[] leaves = new int[4];  // the innermost operand
+    private int[] spineValues = new int[4];  // the value of the levels picked so far
+
+    Generator(long seed, int statements, int variables, int depth, int branching, int[] binary, int[] unary,
+              int outputs, int texts, int comments) {
+        this.random = new Random(seed);
+        this.statements = statements;
+        this.variables = variables;
+        this.depth = depth;
+        this.branching = branching;
+        this.binary = binary;
+        this.unary = unary;
+        this.outputs = outputs;
+        this.texts = texts;
+        this.comments = comments;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seed = 1;
+        int statements = 1000;
+        int variables = 100;
+        int depth = 8;
+        int branching = 0;
+        int[] binary = indexes(BINARY.length);
+        int[] unary = indexes(UNARY.length);
+        int outputs = 30;
+        int texts = 10;
+        int comments = 5;
+        String[] files = new String[2];
+        int fileCount = 0;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(value);
+            } else if (arg.startsWith("--statements=")) {
+                statements = Integer.parseInt(value);
+            } else if (arg.startsWith("--variables=")) {
+                variables = Integer.parseInt(value);
+            } else if (arg.startsWith("--depth=")) {
+                depth = Integer.parseInt(value);
+            } else if (arg.startsWith("--branching=")) {
+                branching = Integer.parseInt(value);
+            } else if (arg.startsWith("--operators=")) {
+                String[] operators = value.split(",");
+                binary = pick(operators, BINARY);
+                unary = pick(operators, UNARY);
+                if (binary.length + unary.length != operators.length) {
+                    fileCount = -1;
+                    break;
+                }
+            } else if (arg.startsWith("--outputs=")) {
+                outputs = Integer.parseInt(value);
+            } else if (arg.startsWith("--texts=")) {
+                texts = Integer.parseInt(value);
+            } else if (arg.startsWith("--comments=")) {
+                comments = Integer.parseInt(value);
+            } else if (fileCount < files.length && !arg.startsWith("--")) {
+                files[fileCount++] = arg;
+            } else {
+                fileCount = -1;
+                break;
+            }
+        }
+        if (fileCount != 2 || comments >= 100 || outputs + texts + comments > 100 || branching < 0 || branching > 100) {
+            System.out.println("Usage: java XMini.Generator [--seed=N] [--statements=N] [--variables=N] [--depth=N] "
+                    + "[--branching=P] [--operators=op,op,...] [--outputs=P] [--texts=P] [--comments=P] "
+                    + "<program file> <expected output file>");
+            System.exit(1);
+        }
+        try (Writer program = Files.newBufferedWriter(Paths.get(files[0]), StandardCharsets.US_ASCII);
+             Writer expected = Files.newBufferedWriter(Paths.get(files[1]), StandardCharsets.US_ASCII)) {
+            new Generator(seed, statements, variables, depth, branching, binary, unary, outputs, texts, comments)
+                    .generate(program, expected);
+        }
+    }
+
+    private static int[] indexes(int count) {
+        int[] indexes = new int[count];
+        for (int i = 0; i < count; i++) {
+            indexes[i] = i;
+        }
+        return indexes;
+    }
+
+    // the indexes into choices of the operators that are among them, once for each time they are listed
+    private static int[] pick(String[] operators, String[] choices) {
+        return Arrays.stream(operators).mapToInt(operator -> Arrays.asList(choices).indexOf(operator))
+                .filter(index -> index >= 0).toArray();
+    }
+
+    void generate(Writer program, Writer expected) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < statements; ) {
+            line.setLength(0);
+            int kind = random.nextInt(100);
+            if (kind < comments) {
+                // a comment is not a statement. The comment marker must not be followed by a newline right away,
+                // or the lexer skips the next line too
+                line.append("// ").append(WORDS[random.nextInt(WORDS.length)]).append('\n');
+                program.append(line);
+                continue;
+            } else if (kind < comments + texts) {
+                text(line, expected);
+            } else if (kind < comments + texts + outputs || variables == 0) {
+                line.append("output ");
+                expected.write(Integer.toString(expression(line)));
+                expected.write(NEWLINE);
+            } else if (defined < variables && (defined == 0 || random.nextBoolean())) {
+                line.append("var ").append(name(defined)).append(' ');
+                int value = expression(line);
+                define(value);
+            } else {
+                int variable = random.nextInt(defined);
+                line.append("set ").append(name(variable)).append(' ');
+                values[variable] = expression(line);
+            }
+            line.append('\n');
+            program.append(line);
+            i++;
+        }
+    }
+
+    private void text(StringBuilder line, Writer expected) throws IOException {
+        String word = WORDS[random.nextInt(WORDS.length)];
+        line.append("text ");
+        switch (random.nextInt(3)) {
+            case 0 -> {
+                line.append(word);
+                expected.write(word);
+            }
+            case 1 -> {
+                line.append('"').append(word).append(" and ").append(word).append('"');
+                expected.write(word + " and " + word);
+            }
+            default -> {
+                line.append('"').append(word).append("\\t\\\"quoted\\\" \\\\").append('"');
+                expected.write(word + "\t\"quoted\" \\");
+            }
+        }
+        expected.write(NEWLINE);
+    }
+
+    // Appends a random expression of random depth to line and returns its value. The levels of a spine are picked from
+    // the innermost out, so the value of the nested part is known when a divisor is picked. A level whose other operand
+    // is a subtree waits for it: the subtree is pushed as a new spine, and once it is done, its text and value are
+    // handed to the waiting level. The spines in progress are kept in arrays instead of recursing.
+    private int expression(StringBuilder line) {
+        int spines = push(0, 0, depth == 0 ? 0 : random.nextInt(depth + 1));
+        String subtree = null;  // the text of the spine just done, for the level waiting for it
+        int subtreeValue = 0;
+        while (true) {
+            int spine = spines - 1;
+            int base = bases[spine];
+            int levels = levelCounts[spine];
+            int value = spineValues[spine];
+            int level = nextLevels[spine];
+            for (; level >= 0; level--) {
+                int at = base + level;
+                int otherValue;
+                if (subtree != null) {
+                    subtrees[at] = subtree;
+                    otherValue = subtreeValue;
+                    subtree = null;
+                } else {
+                    if (binary.length == 0 || (unary.length > 0 && random.nextInt(8) == 0)) {
+                        int op = unary[random.nextInt(unary.length)];
+                        operators[at] = (byte) (-1 - op);
+                        value = op == 0 ? -value : (value == 0 ? 1 : 0);
+                        continue;
+                    }
+                    operators[at] = (byte) binary[random.nextInt(binary.length)];
+                    nestedLeft[at] = random.nextBoolean();
+                    int below = levels - 1 - level;  // depth of the nested part
+                    if (branching > 0 && below > 0 && random.nextInt(100) < branching) {
+                        break;
+                    }
+                    int other = operand();
+                    operands[at] = other;
+                    subtrees[at] = null;
+                    otherValue = valueOf(other);
+                }
+                int op = operators[at];
+                boolean left = nestedLeft[at];
+                int divisor = left ? otherValue : value;
+                if ((op == 3 || op == 4) && divisor == 0) {
+                    op = 0;
+                    operators[at] = 0;
+                }
+                value = left ? apply(op, value, otherValue) : apply(op, otherValue, value);
+            }
+            if (level >= 0) {
+                // the level waits for a subtree as deep as its nested part
+                nextLevels[spine] = level;
+                spineValues[spine] = value;
+                spines = push(spines, base + levels, levels - 1 - level);
+                continue;
+            }
+
+            spines--;
+            StringBuilder text = spines == 0 ? line : new StringBuilder();
+            // prefix order: the operators from the outside in, each with its other operand if the nested part is on
+            // the right, then the innermost operand, then the other operands of the levels whose nested part is on the
+            // left, inside out
+            for (level = 0; level < levels; level++) {
+                int at = base + level;
+                if (operators[at] < 0) {
+                    text.append(UNARY[-1 - operators[at]]).append(' ');
+                } else {
+                    text.append(BINARY[operators[at]]).append(' ');
+                    if (!nestedLeft[at]) {
+                        appendOther(text, at).append(' ');
+                    }
+                }
+            }
+            appendOperand(text, leaves[spine]);
+            for (level = levels - 1; level >= 0; level--) {
+                int at = base + level;
+                if (operators[at] >= 0 && nestedLeft[at]) {
+                    appendOther(text.append(' '), at);
+                }
+            }
+            if (spines == 0) {
+                return value;
+            }
+            subtree = text.toString();
+            subtreeValue = value;
+        }
+    }
+
+    // starts a spine of the given number of levels, stored from base on, and picks its innermost operand
+    private int push(int spines, int base, int levels) {
+        if (spines == bases.length) {
+            bases = Arrays.copyOf(bases, spines * 2);
+            levelCounts = Arrays.copyOf(levelCounts, spines * 2);
+            nextLevels = Arrays.copyOf(nextLevels, spines * 2);
+            leaves = Arrays.copyOf(leaves, spines * 2);
+            spineValues = Arrays.copyOf(spineValues, spines * 2);
+        }
+        ensureLevels(base + levels);
+        bases[spines] = base;
+        levelCounts[spines] = levels;
+        nextLevels[spines] = levels - 1;
+        leaves[spines] = operand();
+        spineValues[spines] = valueOf(leaves[spines]);
+        return spines + 1;
+    }
+
+    private StringBuilder appendOther(StringBuilder text, int at) {
+        return subtrees[at] != null ? text.append(subtrees[at]) : appendOperand(text, operands[at]);
+    }
+
+    // picks a literal, or -1 - the index of a defined variable
+    private int operand() {
+        if (defined > 0 && random.nextInt(3) == 0) {
+            return -1 - random.nextInt(defined);
+        }
+        return random.nextInt(16) == 0 ? random.nextInt(Integer.MAX_VALUE) : random.nextInt(100);
+    }
+
+    private int valueOf(int operand) {
+        return operand >= 0 ? operand : values[-1 - operand];
+    }
+
+    private StringBuilder appendOperand(StringBuilder line, int operand) {
+        return operand >= 0 ? line.append(operand) : line.append(name(-1 - operand));
+    }
+
+    private static int apply(int op, int left, int right) {
+        return switch (BINARY[op]) {
+            case "+" -> left + right;
+            case "-" -> left - right;
+            case "*" -> left * right;
+            case "/" -> left / right;
+            case "%" -> left % right;
+            case "&&" -> left != 0 && right != 0 ? 1 : 0;
+            case "||" -> left != 0 || right != 0 ? 1 : 0;
+            case "==" -> left == right ? 1 : 0;
+            case "!=" -> left != right ? 1 : 0;
+            case "<" -> left < right ? 1 : 0;
+            case ">" -> left > right ? 1 : 0;
+            case "<=" -> left <= right ? 1 : 0;
+            default -> left >= right ? 1 : 0;
+        };
+    }
+
+    private void define(int value) {
+        if (defined == values.length) {
+            values = Arrays.copyOf(values, defined * 2);
+        }
+        values[defined++] = value;
+    }
+
+    private void ensureLevels(int levels) {
+        if (levels + 1 > operators.length) {
+            int size = Math.max(operators.length * 2, levels + 1);
+            operators = Arrays.copyOf(operators, size);
+            nestedLeft = Arrays.copyOf(nestedLeft, size);
+            operands = Arrays.copyOf(operands, size);
+            subtrees = Arrays.copyOf(subtrees, size);
+        }
+    }
+
+    private static String name(int variable) {
+        return "v" + variable;
+    }
+}
@@ -1,49 +1,223 @@
 package XMini;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Interpreter implements Expr.Visitor<Object> {
-    private final Map<String, Object> symbols = new HashMap<>();
+    // Variables holding an int are kept unboxed in ints, and their entry in values is INT.
+    // Other entries of values hold the String value of the variable.
+    static final Object INT = new Object();
+    private final Resolver resolver;
+    private Object[] values = new Object[16];
+    private int[] ints = new int[16];
+    private boolean shared = false;  // values and ints belong to a snapshot too, and are copied before the next write
     private static final Logger LOGGER = Logger.getLogger(Interpreter.class.getName());
 
+    // the operators being evaluated and their left operands, see evaluate()
+    private Expr.Arithmetic[] pending = new Expr.Arithmetic[16];
+    private boolean[] onRight = new boolean[16];
+    private Object[] operands = new Object[16];
+    private int[] intOperands = new int[16];
+
+    private final OutputSink out;
+    private final Profiler profiler;  // null unless profiling
+
+    // results of repeated subtrees, null unless memoizing. A variable's version changes whenever it is written
+    private Subexpressions subexpressions;
+    private long[] versions;
+
     public Interpreter() {
-        LOGGER.setLevel(Level.WARNING);
+        this(new OutputSink(System.out, OutputSink.FlushPolicy.LINE));
+    }
+
+    Interpreter(OutputSink out) {
+        this(out, new Resolver(), null);
+    }
+
+    // reports warnings to the given consumer instead of the shared logger, for interpreters running side by side
+    Interpreter(OutputSink out, Consumer<String> warnings) {
+        this(out, new Resolver(warnings), null);
+    }
+
+    // records what the program does in the given profiler, if it is not null
+    Interpreter(OutputSink out, Profiler profiler) {
+        this(out, new Resolver(), profiler);
+    }
+
+    // starts from the variables of a snapshot, if it is not null. The snapshot is not copied until it is written to
+    Interpreter(OutputSink out, Snapshot snapshot, Profiler profiler) {
+        this(out, new Resolver(snapshot), snapshot, profiler);
+    }
+
+    Interpreter(OutputSink out, Snapshot snapshot, Consumer<String> warnings) {
+        this(out, new Resolver(warnings, snapshot), snapshot, null);
+    }
+
+    private Interpreter(OutputSink out, Resolver resolver, Profiler profiler) {
+        this(out, resolver, null, profiler);
     }
 
-    Object get(String name) {
-        if (!symbols.containsKey(name)) {
-            throw new RuntimeException("Undefined variable " + name);
+    private Interpreter(OutputSink out, Resolver resolver, Snapshot snapshot, Profiler profiler) {
+        this.out = out;
+        this.resolver = resolver;
+        this.profiler = profiler;
+        if (snapshot != null && snapshot.size() > 0) {
+            values = snapshot.values;
+            ints = snapshot.ints;
+            shared = true;
         }
-        return symbols.get(name);
+        if (profiler != null) {
+            profiler.variables(resolver);
+        }
+        LOGGER.setLevel(Level.WARNING);
     }
 
-    void set(String name, Object value) {
-        symbols.put(name, value);
+    // shares the variables of the given interpreter, with its own evaluation state, see fork()
+    private Interpreter(Interpreter shared) {
+        this.out = shared.out;
+        this.resolver = shared.resolver;
+        this.values = shared.values;
+        this.ints = shared.ints;
+        this.versions = shared.versions;  // forks do not memoize, but their writes have to invalidate the results
+        this.profiler = null;
     }
+
     void interpret(List<Expr.Statement> statements) {
+        resolver.resolve(statements);
+        growSlots();
         for (Expr.Statement statement : statements) {
+            if (subexpressions != null) {
+                subexpressions.add(statement);
+            }
+            execute(statement);
+        }
+    }
+
+    // runs a single statement, for callers that parse the program one statement at a time
+    void interpret(Expr.Statement statement) {
+        resolver.resolve(statement);
+        growSlots();
+        if (subexpressions != null) {
+            subexpressions.add(statement);
+        }
+        // The resolver counts a var as defined once it is resolved. If it fails before its first value is stored, the
+        // definition is taken back, so that a REPL going on after the error still finds the variable undefined
+        boolean first = statement.keyword.type() == TokenType.VAR && values[statement.slot] == null;
+        try {
+            execute(statement);
+        } catch (RuntimeException e) {
+            if (first) {
+                resolver.undefine(statement.slot);
+            }
+            throw e;
+        }
+    }
+
+    // resolves a whole program without running it, so that its statements can be run with compute(), also by forks
+    void resolve(List<Expr.Statement> statements) {
+        resolver.resolve(statements);
+        growSlots();
+        if (shared) {
+            // forks write to the arrays directly
+            unshare();
+        }
+    }
+
+    // From now on, the results of subtrees that occur more than once are computed once and reused until one of their
+    // variables is written, see Subexpressions
+    void memoize() {
+        subexpressions = new Subexpressions();
+        versions = new long[values.length];
+    }
+
+    // null unless memoizing
+    Subexpressions subexpressions() {
+        return subexpressions;
+    }
+
+    // An interpreter over the same variables, for running statements on another thread. The caller has to make sure
+    // that statements running at the same time do not touch the same variables.
+    Interpreter fork() {
+        return new Interpreter(this);
+    }
+
+    // The variables as they are now. This is cheap: the snapshot shares the values with this interpreter, which
+    // copies them before it changes any of them.
+    Snapshot snapshot() {
+        shared = true;
+        return new Snapshot(resolver.slots(), resolver.names(), resolver.defined(), values, ints);
+    }
+
+    private void unshare() {
+        values = values.clone();
+        ints = ints.clone();
+        shared = false;
+    }
+
+    // runs a resolved statement, but returns the value of a text or output statement instead of printing it
+    Object compute(Expr.Statement statement) {
+        TokenType type = statement.keyword.type();
+        if (type != TokenType.TEXT && type != TokenType.OUTPUT) {
             execute(statement);
+            return null;
+        }
+        return value(statement.expr);
+    }
+
+    // the value of a resolved expression over the variables as they are now
+    Object value(Expr expr) {
+        if (expr instanceof Expr.Literal literal && literal.constant != null) {
+            return literal.constant;
+        }
+        try {
+            return evaluateInt(expr);
+        } catch (NotAnInt e) {
+            return evaluate(expr);
+        }
+    }
+
+    // sets a variable directly, for callers that keep track of the values themselves (see Watcher)
+    void define(int slot, Object value) {
+        if (shared) {
+            unshare();
+        }
+        if (slot >= values.length) {
+            values = Arrays.copyOf(values, Math.max(values.length * 2, slot + 1));
+            ints = Arrays.copyOf(ints, values.length);
+        }
+        if (value instanceof Integer i) {
+            ints[slot] = i;
+            values[slot] = INT;
+        } else {
+            values[slot] = value;
+        }
+    }
+
+    private void growSlots() {
+        if (values.length < resolver.size()) {
+            values = Arrays.copyOf(values, Math.max(values.length * 2, resolver.size()));
+            ints = Arrays.copyOf(ints, values.length);
+            shared = false;
+            if (versions != null) {
+                versions = Arrays.copyOf(versions, values.length);
+            }
         }
     }
     @Override
     public void visitStatement(Expr.Statement statement) {
         if (statement.keyword.type() == TokenType.TEXT || statement.keyword.type() == TokenType.OUTPUT) {
-            System.out.println(evaluate(statement.expr));
+            print(statement.expr);
         } else if (statement.keyword.type() == TokenType.VAR) {
-            if (symbols.containsKey(statement.var_name.text())) {
-//                throw new RuntimeException("Variable " + statement.var_name.text() + " already defined");
-                LOGGER.warning("Variable " + statement.var_name.text() + " already defined");
-            }
-            set(statement.var_name.text(), evaluate(statement.expr));
+            // redefinitions are reported by the resolver
+            store(statement.slot, statement.expr);
         } else if (statement.keyword.type() == TokenType.SET) {
-            if (!symbols.containsKey(statement.var_name.text())) {
+            if (statement.slot == Resolver.UNDEFINED) {
                 throw new RuntimeException("Variable " + statement.var_name.text() + " not defined");
             }
-            set(statement.var_name.text(), evaluate(statement.expr));
+            store(statement.slot, statement.expr);
         }
         else {
             throw new RuntimeException("Unexpected token " + statement.keyword);
@@ -52,99 +226,304 @@ public class Interpreter implements Expr.Visitor<Object> {
 
     @Override
     public Object visitArithmetic(Expr.Arithmetic expr) {
-        var left = evaluate(expr.left);
-        var right = evaluate(expr.right);
-        switch (expr.operator.type()) {
+        return evaluate(expr);
+    }
+
+    @Override
+    public Object visitLiteral(Expr.Literal expr) {
+        if (expr.value.type() == TokenType.NUMBER) {
+            // a number that does not fit in an int is only reported when it is evaluated
+            return expr.constant != null ? expr.constant : Integer.parseInt(expr.value.text());
+        } else if (expr.value.type() == TokenType.STRING) {
+            return expr.constant;
+        } else {
+            throw new RuntimeException("Unknown literal type: " + expr.value.type());
+        }
+    }
+
+    @Override
+    public Object visitVariable(Expr.Variable variable) {
+        if (variable.slot < 0) {
+            throw new RuntimeException("Undefined variable " + variable.var_name.text());
+        }
+        if (profiler != null) {
+            profiler.read(variable.slot);
+        }
+        Object value = values[variable.slot];
+        return value == INT ? Integer.valueOf(ints[variable.slot]) : value;
+    }
+
+    static Object apply(TokenType operator, Object left, Object right) {
+        switch (operator) {
             case TILDE -> {
-                assert right == null;
                 return -(Integer)left;
             }
             case BANG -> {
-                assert right == null;
                 return (Integer)left == 0? 1: 0;  // because we are asked to evaluate true as 1, false as 0
             }
             case PLUS -> {
-                assert left != null && right != null;
                 return (Integer)left + (Integer)right;
             }
             case MINUS -> {
-                assert left != null && right != null;
                 return (Integer)left - (Integer)right;
             }
             case MUL -> {
-                assert left != null && right != null;
                 return (Integer)left * (Integer)right;
             }
             case DIV -> {
-                assert left != null && right != null;
                 return (Integer)left / (Integer)right;
             }
             case MOD -> {
-                assert left != null && right != null;
                 return (Integer)left % (Integer)right;
             }
             case AND -> {
-                assert left != null && right != null;
                 return ((Integer)left != 0 && (Integer)right != 0)? 1 : 0;
             }
             case OR -> {
                 return ((Integer)left != 0 || (Integer)right != 0)? 1 : 0;
             }
             case EQ -> {
-                assert left != null && right != null;
                 return left.equals(right) ? 1 : 0;
             }
             case NEQ -> {
-                assert left != null && right != null;
                 return !left.equals(right) ? 1 : 0;
             }
             case GT -> {
-                assert left != null && right != null;
                 return (Integer)left > (Integer)right? 1 : 0;
             }
             case LT -> {
-                assert left != null && right != null;
                 return (Integer)left < (Integer)right? 1 : 0;
             }
             case GTE -> {
-                assert left != null && right != null;
                 return (Integer)left >= (Integer)right? 1 : 0;
             }
             case LTE -> {
-                assert left != null && right != null;
                 return (Integer)left <= (Integer)right? 1 : 0;
             }
             default -> {
-                throw new RuntimeException("Unknown operator: " + expr.operator.type());
+                throw new RuntimeException("Unknown operator: " + operator);
             }
         }
     }
 
-    @Override
-    public Object visitLiteral(Expr.Literal expr) {
+    // The exception that casting the value to an Integer throws, with the same message, for engines that check the
+    // kinds of their operands instead of casting them
+    static ClassCastException castError(Object value) {
+        String name = value.getClass().getName();
+        return new ClassCastException("class " + name + " cannot be cast to class java.lang.Integer (" + name
+                + " and java.lang.Integer are in module java.base of loader 'bootstrap')");
+    }
+
+    static int applyInt(TokenType operator, int left, int right) {
+        return switch (operator) {
+            case TILDE -> -left;
+            case BANG -> left == 0 ? 1 : 0;
+            case PLUS -> left + right;
+            case MINUS -> left - right;
+            case MUL -> left * right;
+            case DIV -> left / right;
+            case MOD -> left % right;
+            case AND -> (left != 0 && right != 0) ? 1 : 0;
+            case OR -> (left != 0 || right != 0) ? 1 : 0;
+            case EQ -> left == right ? 1 : 0;
+            case NEQ -> left != right ? 1 : 0;
+            case GT -> left > right ? 1 : 0;
+            case LT -> left < right ? 1 : 0;
+            case GTE -> left >= right ? 1 : 0;
+            case LTE -> left <= right ? 1 : 0;
+            default -> throw new RuntimeException("Unknown operator: " + operator);
+        };
+    }
+
+    private int literalInt(Expr.Literal expr) {
         if (expr.value.type() == TokenType.NUMBER) {
-            return Integer.parseInt(expr.value.text());
-        } else if (expr.value.type() == TokenType.STRING) {
-            return expr.value.text();
-        } else {
-            throw new RuntimeException("Unknown literal type: " + expr.value.type());
+            return expr.constant != null ? (Integer) expr.constant : Integer.parseInt(expr.value.text());
         }
+        throw NOT_AN_INT;
     }
 
-    @Override
-    public Object visitVariable(Expr.Variable variable) {
-        return get(variable.var_name.text());
+    private int variableInt(Expr.Variable variable) {
+        if (variable.slot < 0) {
+            throw new RuntimeException("Undefined variable " + variable.var_name.text());
+        }
+        if (values[variable.slot] != INT) {
+            throw NOT_AN_INT;
+        }
+        if (profiler != null) {
+            profiler.pendingRead(variable.slot);
+        }
+        return ints[variable.slot];
     }
 
+    private void print(Expr expr) {
+        if (expr instanceof Expr.Literal literal && literal.constant != null) {
+            out.println(literal.constant);
+            return;
+        }
+        try {
+            out.println(evaluateInt(expr));
+        } catch (NotAnInt e) {
+            out.println(evaluate(expr));
+        }
+    }
+
+    private void store(int slot, Expr expr) {
+        if (shared) {
+            unshare();
+        }
+        try {
+            ints[slot] = evaluateInt(expr);
+            values[slot] = INT;
+        } catch (NotAnInt e) {
+            Object value = evaluate(expr);
+            if (value instanceof Integer i) {
+                ints[slot] = i;
+                values[slot] = INT;
+            } else {
+                values[slot] = value;
+            }
+        }
+        if (versions != null) {
+            versions[slot]++;
+        }
+        if (profiler != null) {
+            profiler.write(slot);
+        }
+    }
+
+    // Evaluates an expression without recursion, so it can be nested arbitrarily deep. The tree is walked in the
+    // same order as a recursive evaluation would: the left operand, then the right one, then the operator. Operators
+    // whose operands are not done yet wait in pending, and the values of their left operands in operands.
     private Object evaluate(Expr expr) {
-        if (expr == null) {
-            return null;
+        int top = 0;
+        Expr node = expr;
+        while (true) {
+            while (node instanceof Expr.Arithmetic arithmetic && !reusable(arithmetic)) {
+                push(top++, arithmetic);
+                node = arithmetic.left;
+            }
+            Object value;
+            if (node instanceof Expr.Arithmetic reused) {
+                value = subexpressions.value(reused.memo);
+                subexpressions.reused(1, subexpressions.size(reused.memo));
+            } else {
+                value = node instanceof Expr.Literal literal ? visitLiteral(literal) : visitVariable((Expr.Variable) node);
+            }
+            while (true) {
+                if (top == 0) {
+                    return value;
+                }
+                Expr.Arithmetic operator = pending[top - 1];
+                if (operator.right != null && !onRight[top - 1]) {
+                    onRight[top - 1] = true;
+                    operands[top - 1] = value;
+                    node = operator.right;
+                    break;
+                }
+                top--;
+                if (profiler != null) {
+                    profiler.operator(operator.operator.type());
+                }
+                value = operator.right == null ? apply(operator.operator.type(), value, null)
+                        : apply(operator.operator.type(), operands[top], value);
+                operands[top] = null;
+                if (operator.memo >= 0 && subexpressions != null) {
+                    subexpressions.remember(operator.memo, (Integer) value, versions);
+                }
+            }
+        }
+    }
+
+    // Evaluates an expression on the int-only path. Throws NOT_AN_INT as soon as it meets a string, in which case
+    // the expression is evaluated again on the generic path; expressions have no side effects, so this is safe.
+    private int evaluateInt(Expr expr) {
+        if (profiler != null) {
+            profiler.begin();
+        }
+        int top = 0;
+        int reused = 0;  // counted once the evaluation succeeds, like the profiler's counts
+        long saved = 0;
+        Expr node = expr;
+        while (true) {
+            while (node instanceof Expr.Arithmetic arithmetic && !reusable(arithmetic)) {
+                push(top++, arithmetic);
+                node = arithmetic.left;
+            }
+            int value;
+            if (node instanceof Expr.Arithmetic memoized) {
+                value = subexpressions.value(memoized.memo);
+                reused++;
+                saved += subexpressions.size(memoized.memo);
+            } else {
+                value = node instanceof Expr.Literal literal ? literalInt(literal) : variableInt((Expr.Variable) node);
+            }
+            while (true) {
+                if (top == 0) {
+                    if (profiler != null) {
+                        profiler.commit();
+                    }
+                    if (reused > 0) {
+                        subexpressions.reused(reused, saved);
+                    }
+                    return value;
+                }
+                Expr.Arithmetic operator = pending[top - 1];
+                if (operator.right != null && !onRight[top - 1]) {
+                    onRight[top - 1] = true;
+                    intOperands[top - 1] = value;
+                    node = operator.right;
+                    break;
+                }
+                top--;
+                if (profiler != null) {
+                    profiler.pendingOperator(operator.operator.type());
+                }
+                value = operator.right == null ? applyInt(operator.operator.type(), value, 0)
+                        : applyInt(operator.operator.type(), intOperands[top], value);
+                if (operator.memo >= 0 && subexpressions != null) {
+                    subexpressions.remember(operator.memo, value, versions);
+                }
+            }
         }
-        return expr.accept(this);
     }
 
+    // whether the subtree has a memoized value that is still current
+    private boolean reusable(Expr.Arithmetic arithmetic) {
+        return arithmetic.memo >= 0 && subexpressions != null && subexpressions.valid(arithmetic.memo, versions);
+    }
+
+    private void push(int index, Expr.Arithmetic operator) {
+        if (index == pending.length) {
+            pending = Arrays.copyOf(pending, index * 2);
+            onRight = Arrays.copyOf(onRight, index * 2);
+            operands = Arrays.copyOf(operands, index * 2);
+            intOperands = Arrays.copyOf(intOperands, index * 2);
+        }
+        pending[index] = operator;
+        onRight[index] = false;
+    }
+
+    private static class NotAnInt extends RuntimeException {
+        NotAnInt() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final NotAnInt NOT_AN_INT = new NotAnInt();
+
     private void execute(Expr.Statement statement) {
-        statement.accept(this);
+        if (profiler == null) {
+            statement.accept(this);
+            return;
+        }
+        Profiler.StatementEvent event = new Profiler.StatementEvent();
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            statement.accept(this);
+        } finally {
+            profiler.statement(statement, System.nanoTime() - start, event);
+        }
     }
 }
 
@@ -1,6 +1,12 @@
 package XMini;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /* Operators:
@@ -51,131 +57,360 @@ record Token(TokenType type, String text) {
 }
 
 
+/*
+ * Character classes are looked up in a table for ASCII, operators are matched directly on their characters, and the
+ * text of a token is collected in a reusable scratch buffer. Keyword and operator tokens are shared instances, and
+ * identifier and number tokens are interned, so lexing a large file allocates next to nothing per token: only string
+ * literals and the first occurrence of each name get a new Token. A program kept as parallel primitive arrays instead of
+ * Token and Expr objects is an Arena, see Parser.parseArena().
+ */
 public class Lexer {
-    private final String input;
+    static class LexerException extends RuntimeException {
+        LexerException(String message) {
+            super(message);
+        }
+    }
+
+    // character classes
+    private static final int WHITESPACE = 1;
+    private static final int DIGIT = 2;
+    private static final int LETTER = 4;
+    private static final int IDENTIFIER_PART = 8;  // [a-zA-Z0-9_]
+    private static final int WORD_END = 16;        // whitespace or the end of the input
+    private static final byte[] CLASSES = new byte[128];
+    private static final Token[] FIXED = new Token[TokenType.values().length];
+    private static final int MAX_SYMBOLS = 1 << 16;
+
+    static {
+        for (char c = 0; c < CLASSES.length; c++) {
+            int flags = unicodeClass(c);
+            if (c == '_' || (c < 128 && Character.isLetterOrDigit(c))) {
+                flags |= IDENTIFIER_PART;
+            }
+            CLASSES[c] = (byte) flags;
+        }
+        CLASSES['\0'] |= WORD_END;
+        for (TokenType type : TokenType.values()) {
+            String text = switch (type) {
+                case TEXT -> "text";
+                case OUTPUT -> "output";
+                case VAR -> "var";
+                case SET -> "set";
+                case PLUS -> "+";
+                case MINUS -> "-";
+                case MUL -> "*";
+                case DIV -> "/";
+                case MOD -> "%";
+                case BANG -> "!";
+                case TILDE -> "~";
+                case EQ -> "==";
+                case NEQ -> "!=";
+                case LT -> "<";
+                case GT -> ">";
+                case LTE -> "<=";
+                case GTE -> ">=";
+                case AND -> "&&";
+                case OR -> "||";
+                case EOF -> "";
+                default -> null;
+            };
+            if (text != null) {
+                FIXED[type.ordinal()] = new Token(type, text);
+            }
+        }
+    }
+
+    private final Reader input;
+    private final char[] buffer;
+    private int bufferLength = 0;
+    private int bufferPos = 0;
     private int line;
     private int linePos;
     private int pos;
     private char currentChar;
-    private final List<Token> tokens = new ArrayList<>();
+    private TokenType lastType = null;
+    private char[] word = new char[64];  // text of the token being scanned
+    private int wordLength = 0;
+    private Token[] symbols = new Token[256];  // interned identifier and number tokens, open addressing
+    private int symbolCount = 0;
+    // where the last token scanned started, and the state the lexer was in there, see ParallelLexer
+    private int tokenStart;
+    private int tokenLine;
+    private int tokenLinePos;
+    private boolean tokenAfterText;
 
     public Lexer(String input) {
+        this(new StringReader(input), Math.max(1, Math.min(input.length(), 1 << 16)));
+    }
+
+    // Lexes the input incrementally, only buffering a small window of it
+    public Lexer(Reader input) {
+        this(input, 1 << 16);
+    }
+
+    private Lexer(Reader input, int bufferSize) {
+        this(input, bufferSize, 0, 1, 0);
+    }
+
+    private Lexer(Reader input, int bufferSize, int pos, int line, int linePos) {
         this.input = input;
-        this.line = 1;
-        this.linePos = 0;
-        this.pos = 0;
-        this.currentChar = input.charAt(0);
+        this.buffer = new char[bufferSize];
+        this.line = line;
+        this.linePos = linePos;
+        this.pos = pos;
+        this.currentChar = read();
+    }
+
+    // Lexes the input from the given position on, as if it had been lexed from the start up to there: the position is
+    // on the given line and column, and follows a `text` keyword if afterText is set
+    static Lexer resume(String input, int start, int line, int linePos, boolean afterText) {
+        StringReader reader = new StringReader(input);
+        try {
+            reader.skip(start);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        Lexer lexer = new Lexer(reader, 1 << 16, start, line, linePos);
+        lexer.lastType = afterText ? TokenType.TEXT : null;
+        return lexer;
+    }
+
+    // Lexes a file through a memory mapping, without reading it into memory first
+    public static Lexer ofFile(Path path, Charset charset) throws IOException {
+        return new Lexer(new MappedFileReader(path, charset));
+    }
+
+    // The token of a keyword, an operator or EOF, whose text is always the same
+    static Token fixed(TokenType type) {
+        return FIXED[type.ordinal()];
     }
 
     public List<Token> getTokens() {
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = nextToken();
+            tokens.add(token);
+        } while (token.type() != TokenType.EOF);
+        return tokens;
+    }
+
+    // Returns the next token, scanning only as much input as needed. Returns EOF once the input is exhausted.
+    public Token nextToken() {
+        TokenType type = nextType();
+        return switch (type) {
+            case IDENTIFIER, NUMBER -> symbol(type);
+            case STRING -> new Token(type, new String(word, 0, wordLength));
+            default -> FIXED[type.ordinal()];
+        };
+    }
+
+    // the position in the input where the last token scanned, or being scanned, starts
+    int tokenStart() {
+        return tokenStart;
+    }
+
+    int tokenLine() {
+        return tokenLine;
+    }
+
+    int tokenLinePos() {
+        return tokenLinePos;
+    }
+
+    // whether the last token scanned directly follows a `text` keyword, which makes a bare word a string
+    boolean tokenAfterText() {
+        return tokenAfterText;
+    }
+
+    // scans the next token, leaving its text in word
+    private TokenType nextType() {
         while (currentChar != '\0') {
-            if (Character.isWhitespace(currentChar)) {
-                skipWhitespace();
-            } else if (Character.isDigit(currentChar)) {
-                tokens.add(new Token(TokenType.NUMBER, readNumber()));
-            } else if (currentChar == '"') {
-                tokens.add(new Token(TokenType.STRING, readString(true)));
-            } else if (tokens.size() > 0 && tokens.get(tokens.size() - 1).type() == TokenType.TEXT) {
-                tokens.add(new Token(TokenType.STRING, readString(false)));
-            } else if (currentChar == '+') {
-                tokens.add(new Token(TokenType.PLUS, "+"));
-                nextChar();
-            } else if (currentChar == '-') {
-                tokens.add(new Token(TokenType.MINUS, "-"));
-                nextChar();
-            } else if (currentChar == '*') {
-                tokens.add(new Token(TokenType.MUL, "*"));
-                nextChar();
-            } else if (currentChar == '/') {
-                var tokenString = readString(false);
-                if (tokenString.equals("/")) {
-                    tokens.add(new Token(TokenType.DIV, "/"));
-                    nextChar();
-                } else if (tokenString.startsWith("//")) {
-                    skipComment();
-                }
-            } else if (currentChar == '%') {
-                tokens.add(new Token(TokenType.MOD, "%"));
-                nextChar();
-            } else if (currentChar == '~') {
-                tokens.add(new Token(TokenType.TILDE, "~"));
-                nextChar();
-            } else if (currentChar == '&') {
-                // &&
-                var tokenString = readString(false);
-                if (tokenString.equals("&&")) {
-                    tokens.add(new Token(TokenType.AND, "&&"));
-                } else {
-                    error(line, linePos, "Unexpected token: " + tokenString);
-                }
-            } else if (currentChar == '|') {
-                // ||
-                var tokenString = readString(false);
-                if (tokenString.equals("||")) {
-                    tokens.add(new Token(TokenType.OR, "||"));
-                } else {
-                    error(line, linePos, "Unexpected token: " + tokenString);
-                }
-            } else if (currentChar == '=') {
-                // ==
-                var tokenString = readString(false);
-                if (tokenString.equals("==")) {
-                    tokens.add(new Token(TokenType.EQ, "=="));
-                } else {
-                    error(line, linePos, "Unexpected token: " + tokenString);
-                }
-            } else if (currentChar == '!') {
-                // !, !=
-                var tokenString = readString(false);
-                if (tokenString.equals("!")) {
-                    tokens.add(new Token(TokenType.BANG, "!"));
-                } else if (tokenString.equals("!=")) {
-                    tokens.add(new Token(TokenType.NEQ, "!="));
-                } else {
-                    error(line, linePos, "Unexpected token: " + tokenString);
-                }
-            } else if (currentChar == '<') {
-                // <, <=
-                var tokenString = readString(false);
-                if (tokenString.equals("<")) {
-                    tokens.add(new Token(TokenType.LT, "<"));
-                } else if (tokenString.equals("<=")) {
-                    tokens.add(new Token(TokenType.LTE, "<="));
-                } else {
-                    error(line, linePos, "Unexpected token: " + tokenString);
-                }
-            } else if (currentChar == '>') {
-                // >, >=
-                var tokenString = readString(false);
-                if (tokenString.equals(">")) {
-                    tokens.add(new Token(TokenType.GT, ">"));
-                } else if (tokenString.equals(">=")) {
-                    tokens.add(new Token(TokenType.GTE, ">="));
-                } else {
-                    error(line, linePos, "Unexpected token: " + tokenString);
-                }
-            } else if (Character.isLetter(currentChar)) {
-                var tokenString = readString(false);
-                if (tokenString.equals("output")) {
-                    tokens.add(new Token(TokenType.OUTPUT, "output"));
-                } else if (tokenString.equals("var")) {
-                    tokens.add(new Token(TokenType.VAR, "var"));
-                } else if (tokenString.equals("set")) {
-                    tokens.add(new Token(TokenType.SET, "set"));
-                }  else if (tokenString.equals("text")) {
-                    tokens.add(new Token(TokenType.TEXT, "text"));
-                } else if (isIdentifier(tokenString)) {
-                    tokens.add(new Token(TokenType.IDENTIFIER, tokenString));
-                } else {
-                    error(line, linePos, "Unexpected token: " + tokenString);
+            tokenStart = pos;
+            tokenLine = line;
+            tokenLinePos = linePos;
+            tokenAfterText = lastType == TokenType.TEXT;
+            TokenType type = scan();
+            if (type != null) {
+                lastType = type;
+                return type;
+            }
+        }
+        lastType = TokenType.EOF;
+        return TokenType.EOF;
+    }
+
+    // scans one token, or returns null after skipping whitespace or a comment
+    private TokenType scan() {
+        char c = currentChar;
+        int flags = classOf(c);
+        wordLength = 0;
+        if ((flags & WHITESPACE) != 0) {
+            skipWhitespace();
+            return null;
+        } else if ((flags & DIGIT) != 0) {
+            readNumber();
+            return TokenType.NUMBER;
+        } else if (c == '"') {
+            readString(true);
+            return TokenType.STRING;
+        } else if (lastType == TokenType.TEXT) {
+            readString(false);
+            return TokenType.STRING;
+        }
+        return switch (c) {
+            case '+' -> single(TokenType.PLUS);
+            case '-' -> single(TokenType.MINUS);
+            case '*' -> single(TokenType.MUL);
+            case '%' -> single(TokenType.MOD);
+            case '~' -> single(TokenType.TILDE);
+            case '/' -> slash();
+            case '&' -> operator(null, '&', TokenType.AND);
+            case '|' -> operator(null, '|', TokenType.OR);
+            case '=' -> operator(null, '=', TokenType.EQ);
+            case '!' -> operator(TokenType.BANG, '=', TokenType.NEQ);
+            case '<' -> operator(TokenType.LT, '=', TokenType.LTE);
+            case '>' -> operator(TokenType.GT, '=', TokenType.GTE);
+            default -> {
+                if ((flags & LETTER) != 0) {
+                    yield identifier();
                 }
+                error(line, linePos, "Unexpected token: " + c);
+                yield null;
+            }
+        };
+    }
+
+    private TokenType single(TokenType type) {
+        nextChar();
+        return type;
+    }
+
+    // an operator word: `first` on its own, or followed by `second`. Anything else up to the next whitespace is an error
+    private TokenType operator(TokenType single, char second, TokenType pair) {
+        appendAndAdvance(currentChar);
+        if (atWordEnd() && single != null) {
+            return single;
+        }
+        if (currentChar == second) {
+            appendAndAdvance(second);
+            if (atWordEnd()) {
+                return pair;
             }
-            else {
-                error(line, linePos, "Unexpected token: " + currentChar);
+        }
+        readWord();
+        error(line, linePos, "Unexpected token: " + new String(word, 0, wordLength));
+        return null;
+    }
+
+    // `/` on its own, or a comment starting with `//`. Other words starting with `/` are dropped
+    private TokenType slash() {
+        appendAndAdvance('/');
+        if (atWordEnd()) {
+            nextChar();
+            return TokenType.DIV;
+        }
+        readWord();
+        if (wordLength >= 2 && word[1] == '/') {
+            skipComment();
+        }
+        return null;
+    }
+
+    private TokenType identifier() {
+        boolean ascii = currentChar < 128;
+        while ((classOf(currentChar) & IDENTIFIER_PART) != 0) {
+            appendAndAdvance(currentChar);
+        }
+        if (!ascii || !atWordEnd()) {
+            // only [a-zA-Z_][a-zA-Z0-9_]* words are identifiers
+            if (wordLength == 0) {
+                appendAndAdvance(currentChar);
+            }
+            readWord();
+            error(line, linePos, "Unexpected token: " + new String(word, 0, wordLength));
+        }
+        if (isWord("output")) {
+            return TokenType.OUTPUT;
+        } else if (isWord("var")) {
+            return TokenType.VAR;
+        } else if (isWord("set")) {
+            return TokenType.SET;
+        } else if (isWord("text")) {
+            return TokenType.TEXT;
+        }
+        return TokenType.IDENTIFIER;
+    }
+
+    private boolean isWord(String keyword) {
+        if (wordLength != keyword.length()) {
+            return false;
+        }
+        for (int i = 0; i < wordLength; i++) {
+            if (word[i] != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // returns the shared token for the text in word, so a name or number used many times is only allocated once
+    private Token symbol(TokenType type) {
+        int mask = symbols.length - 1;
+        int index = hash(type, word, wordLength) & mask;
+        Token token;
+        while ((token = symbols[index]) != null) {
+            if (token.type() == type && isWord(token.text())) {
+                return token;
+            }
+            index = (index + 1) & mask;
+        }
+        token = new Token(type, new String(word, 0, wordLength));
+        if (symbolCount < MAX_SYMBOLS) {
+            symbols[index] = token;
+            if (++symbolCount * 2 > symbols.length) {
+                rehash();
+            }
+        }
+        return token;
+    }
+
+    private void rehash() {
+        Token[] old = symbols;
+        symbols = new Token[old.length * 2];
+        int mask = symbols.length - 1;
+        for (Token token : old) {
+            if (token != null) {
+                int index = hash(token.type(), token.text().toCharArray(), token.text().length()) & mask;
+                while (symbols[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                symbols[index] = token;
             }
         }
-        tokens.add(new Token(TokenType.EOF, ""));
-        return tokens;
+    }
+
+    private static int hash(TokenType type, char[] text, int length) {
+        int hash = type.ordinal();
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + text[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int classOf(char c) {
+        return c < 128 ? CLASSES[c] : unicodeClass(c);
+    }
+
+    private static int unicodeClass(char c) {
+        if (Character.isWhitespace(c)) {
+            return WHITESPACE | WORD_END;
+        }
+        return (Character.isDigit(c) ? DIGIT : 0) | (Character.isLetter(c) ? LETTER : 0);
+    }
+
+    private boolean atWordEnd() {
+        return (classOf(currentChar) & WORD_END) != 0;
     }
 
     private void nextChar() {
@@ -186,66 +421,92 @@ public class Lexer {
             linePos++;
         }
         pos++;
-        currentChar = pos == input.length() ? '\0' : input.charAt(pos);
+        currentChar = read();
+    }
+
+    private char read() {
+        if (bufferPos == bufferLength) {
+            try {
+                bufferLength = input.read(buffer, 0, buffer.length);
+            } catch (IOException e) {
+                error("Error reading input: " + e.getMessage());
+            }
+            bufferPos = 0;
+            if (bufferLength <= 0) {
+                bufferLength = 0;
+                return '\0';
+            }
+        }
+        return buffer[bufferPos++];
     }
 
     private void skipWhitespace() {
-        while (Character.isWhitespace(currentChar) && currentChar != '\0') {
+        while ((classOf(currentChar) & WHITESPACE) != 0) {
             nextChar();
         }
     }
 
-    private String readNumber() {
-        StringBuilder sb = new StringBuilder();
-        while (Character.isDigit(currentChar)) {
-            sb.append(currentChar);
-            nextChar();
+    private void readNumber() {
+        while ((classOf(currentChar) & DIGIT) != 0) {
+            appendAndAdvance(currentChar);
         }
-        return sb.toString();
     }
 
-    private String readString(boolean quoted) {
-        StringBuilder sb = new StringBuilder();
+    private void readString(boolean quoted) {
         if (quoted) {
             nextChar();
             while (currentChar != '"' && currentChar != '\0') {
-               readOneChar(sb);
+               readOneChar();
             }
             if (currentChar == '\0') {
                 error(line, linePos, "Unexpected end of input");
             }
             nextChar();
         } else {
-            while (!Character.isWhitespace(currentChar) && currentChar != '\0') {
-                // handle escaped characters
-                readOneChar(sb);
-            }
+            readWord();
         }
+    }
 
-        return sb.toString();
+    // reads up to the next whitespace, handling escaped characters
+    private void readWord() {
+        while (!atWordEnd()) {
+            readOneChar();
+        }
     }
 
-    private void readOneChar(StringBuilder sb) {
+    private void readOneChar() {
         if (currentChar == '\\') {
             nextChar();
             switch (currentChar) {
-                case 'b' -> sb.append('\b');
-                case 'f' -> sb.append('\f');
-                case 't' -> sb.append('\t');
-                case 'r' -> sb.append('\r');
-                case 'n' -> sb.append('\n');
-                case '\'' -> sb.append('\'');
-                case '"' -> sb.append('"');
-                case '\\' -> sb.append('\\');
+                case 'b' -> append('\b');
+                case 'f' -> append('\f');
+                case 't' -> append('\t');
+                case 'r' -> append('\r');
+                case 'n' -> append('\n');
+                case '\'' -> append('\'');
+                case '"' -> append('"');
+                case '\\' -> append('\\');
                 default -> error(line, linePos, "Unexpected escape character: " + currentChar);
             }
         } else {
-            sb.append(currentChar);
+            append(currentChar);
         }
 
         nextChar();
     }
 
+    private void appendAndAdvance(char c) {
+        append(c);
+        nextChar();
+    }
+
+    private void append(char c) {
+        if (wordLength == word.length) {
+            word = Arrays.copyOf(word, word.length * 2);
+        }
+        word[wordLength++] = c;
+    }
+
     private void skipComment() {
         if (currentChar == '\0'  || linePos == 0) {
             // if the comment has been eaten by the previous readString
@@ -257,17 +518,11 @@ public class Lexer {
         }
     }
 
-    private boolean isIdentifier(String s) {
-        return s.matches("[a-zA-Z_][a-zA-Z0-9_]*");
-    }
-
     private static void error(int line, int pos, String msg) {
-        System.err.println("Error on line " + line + " at position " + pos + ": " + msg);
-        System.exit(1);
+        throw new LexerException("Error on line " + line + " at position " + pos + ": " + msg);
     }
 
     private static void error(String msg) {
-        System.err.println(msg);
-        System.exit(1);
+        throw new LexerException(msg);
     }
 }
@@ -0,0 +1,72 @@
+package XMini;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * A Reader over a memory-mapped file. The file is mapped one region at a time and decoded straight into the caller's
+ * buffer, so it is never copied into memory as a whole, and files larger than 2GB can be read as well.
+ */
+class MappedFileReader extends Reader {
+    private static final long REGION_SIZE = 1L << 28;
+
+    private final FileChannel channel;
+    private final CharsetDecoder decoder;
+    private final long size;
+    private long regionStart;
+    private MappedByteBuffer region;
+    private boolean flushed = false;
+
+    MappedFileReader(Path path, Charset charset) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.decoder = charset.newDecoder();
+        map(0);
+    }
+
+    // maps the region starting at the given offset of the file
+    private void map(long start) throws IOException {
+        regionStart = start;
+        region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) throws IOException {
+        CharBuffer out = CharBuffer.wrap(chars, offset, length);
+        while (true) {
+            boolean last = regionStart + region.limit() == size;
+            CoderResult result = decoder.decode(region, out, last);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (out.position() > offset || result.isOverflow()) {
+                return out.position() - offset;
+            }
+            if (last) {
+                if (!flushed) {
+                    flushed = true;
+                    decoder.flush(out);
+                    if (out.position() > offset) {
+                        return out.position() - offset;
+                    }
+                }
+                return -1;
+            }
+            // a character may be split across two regions, so the next one starts at the first undecoded byte
+            map(regionStart + region.position());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,588 @@
+package XMini;
+
+/*
+ * The nodes of the execution tree of a NodeInterpreter, which rewrite themselves as they run.
+ *
+ * Every node can be executed for any value with execute(), or for an int with executeInt(), which does not box. A node
+ * that finds a value of another type than it expects throws UnexpectedResult with the value, and parents fall back to
+ * execute() for that operand. Variable reads and the operators whose result depends on the types of their operands
+ * start uninitialized: on their first execution they look at the values they get and replace themselves, in their
+ * parent, with a node specialized for ints or for strings. A specialized node that meets another type later replaces
+ * itself with the generic node for its operator, which does what Interpreter.apply() does, and finishes the operation
+ * with the values it already has, so that no operand is evaluated twice.
+ *
+ * Each int operator is a class of its own, whose executeInt() applies the Java operator directly. Evaluation order and
+ * errors are those of the Interpreter: the left operand, then the right one, then the operator.
+ */
+abstract class Node {
+    // the variables of a run, like in the Interpreter: the value of a slot is in ints where values holds INT
+    static final class Frame {
+        final Object[] values;
+        final int[] ints;
+
+        Frame(int slots) {
+            values = new Object[slots];
+            ints = new int[slots];
+        }
+    }
+
+    static final class UnexpectedResult extends Exception {
+        final Object result;
+
+        UnexpectedResult(Object result) {
+            super(null, null, false, false);
+            this.result = result;
+        }
+    }
+
+    Node parent;
+
+    abstract Object execute(Frame frame);
+
+    int executeInt(Frame frame) throws UnexpectedResult {
+        Object value = execute(frame);
+        if (value instanceof Integer i) {
+            return i;
+        }
+        throw new UnexpectedResult(value);
+    }
+
+    // puts the given node in the place of this one in the tree
+    final <T extends Node> T replace(T node) {
+        node.parent = parent;
+        parent.replaceChild(this, node);
+        return node;
+    }
+
+    void replaceChild(Node child, Node node) {
+        throw new IllegalStateException(getClass().getSimpleName() + " has no children");
+    }
+
+    // the operand of a unary operator
+    abstract static class Unary extends Node {
+        final TokenType operator;
+        Node operand;
+
+        Unary(TokenType operator, Node operand) {
+            this.operator = operator;
+            this.operand = operand;
+            operand.parent = this;
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            operand = node;
+        }
+    }
+
+    abstract static class Binary extends Node {
+        final TokenType operator;
+        Node left;
+        Node right;
+
+        Binary(TokenType operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            left.parent = this;
+            right.parent = this;
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (left == child) {
+                left = node;
+            } else {
+                right = node;
+            }
+        }
+    }
+
+    // leaves
+
+    static final class Constant extends Node {
+        private final int value;
+        private final Integer boxed;
+
+        Constant(int value) {
+            this.value = value;
+            this.boxed = value;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            return boxed;
+        }
+
+        @Override
+        int executeInt(Frame frame) {
+            return value;
+        }
+    }
+
+    static final class Text extends Node {
+        private final String value;
+
+        Text(String value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            return value;
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            throw new UnexpectedResult(value);
+        }
+    }
+
+    static final class Undefined extends Node {
+        private final String name;
+
+        Undefined(String name) {
+            this.name = name;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            throw new RuntimeException("Undefined variable " + name);
+        }
+    }
+
+    // a number that does not fit in an int, which fails when it is evaluated
+    static final class BadNumber extends Node {
+        private final String text;
+
+        BadNumber(String text) {
+            this.text = text;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            return Integer.parseInt(text);
+        }
+    }
+
+    static final class Read extends Node {
+        final int slot;
+
+        Read(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object value = frame.values[slot];
+            if (value == Interpreter.INT) {
+                return replace(new ReadInt(slot)).execute(frame);
+            }
+            return replace(new ReadValue(slot)).execute(frame);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            if (frame.values[slot] == Interpreter.INT) {
+                return replace(new ReadInt(slot)).executeInt(frame);
+            }
+            return replace(new ReadValue(slot)).executeInt(frame);
+        }
+    }
+
+    static final class ReadInt extends Node {
+        private final int slot;
+
+        ReadInt(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object value = frame.values[slot];
+            if (value != Interpreter.INT) {
+                return replace(new ReadValue(slot)).execute(frame);
+            }
+            return frame.ints[slot];
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            Object value = frame.values[slot];
+            if (value != Interpreter.INT) {
+                replace(new ReadValue(slot));
+                throw new UnexpectedResult(value);
+            }
+            return frame.ints[slot];
+        }
+    }
+
+    static final class ReadValue extends Node {
+        private final int slot;
+
+        ReadValue(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object value = frame.values[slot];
+            return value == Interpreter.INT ? Integer.valueOf(frame.ints[slot]) : value;
+        }
+    }
+
+    // operators before their first execution
+
+    static final class UninitializedUnary extends Unary {
+        UninitializedUnary(TokenType operator, Node operand) {
+            super(operator, operand);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object value = Interpreter.apply(operator, operand.execute(frame), null);
+            // both operators only take ints: either the operand was one, or apply() threw
+            replace(operator == TokenType.TILDE ? new Negate(operand) : new Not(operand));
+            return value;
+        }
+    }
+
+    static final class UninitializedBinary extends Binary {
+        UninitializedBinary(TokenType operator, Node left, Node right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object leftValue = left.execute(frame);
+            Object rightValue = right.execute(frame);
+            Object value = Interpreter.apply(operator, leftValue, rightValue);
+            if (leftValue instanceof Integer && rightValue instanceof Integer) {
+                replace(specialize(operator, left, right));
+            } else if (leftValue instanceof String && rightValue instanceof String
+                    && (operator == TokenType.EQ || operator == TokenType.NEQ)) {
+                replace(new StringEqual(operator, left, right));
+            } else {
+                replace(new Generic(operator, left, right));
+            }
+            return value;
+        }
+
+        private static Node specialize(TokenType operator, Node left, Node right) {
+            return switch (operator) {
+                case PLUS -> new Add(left, right);
+                case MINUS -> new Subtract(left, right);
+                case MUL -> new Multiply(left, right);
+                case DIV -> new Divide(left, right);
+                case MOD -> new Remainder(left, right);
+                case AND -> new And(left, right);
+                case OR -> new Or(left, right);
+                case EQ -> new Equal(left, right);
+                case NEQ -> new NotEqual(left, right);
+                case LT -> new Less(left, right);
+                case GT -> new Greater(left, right);
+                case LTE -> new LessEqual(left, right);
+                case GTE -> new GreaterEqual(left, right);
+                default -> new Generic(operator, left, right);
+            };
+        }
+    }
+
+    // operators specialized for ints
+
+    abstract static class IntUnary extends Unary {
+        IntUnary(TokenType operator, Node operand) {
+            super(operator, operand);
+        }
+
+        @Override
+        final Object execute(Frame frame) {
+            try {
+                return executeInt(frame);
+            } catch (UnexpectedResult e) {
+                return e.result;
+            }
+        }
+
+        final int operand(Frame frame) throws UnexpectedResult {
+            try {
+                return operand.executeInt(frame);
+            } catch (UnexpectedResult e) {
+                if (e.result instanceof Integer i) {
+                    return i;
+                }
+                throw new UnexpectedResult(replace(new Generic(operator, operand, null)).apply(e.result, null));
+            }
+        }
+    }
+
+    static final class Negate extends IntUnary {
+        Negate(Node operand) {
+            super(TokenType.TILDE, operand);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            return -operand(frame);
+        }
+    }
+
+    static final class Not extends IntUnary {
+        Not(Node operand) {
+            super(TokenType.BANG, operand);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            return operand(frame) == 0 ? 1 : 0;
+        }
+    }
+
+    abstract static class IntBinary extends Binary {
+        IntBinary(TokenType operator, Node left, Node right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        final Object execute(Frame frame) {
+            try {
+                return executeInt(frame);
+            } catch (UnexpectedResult e) {
+                return e.result;
+            }
+        }
+
+        final int left(Frame frame) throws UnexpectedResult {
+            try {
+                return left.executeInt(frame);
+            } catch (UnexpectedResult e) {
+                if (e.result instanceof Integer i) {
+                    return i;
+                }
+                Generic generic = replace(new Generic(operator, left, right));
+                throw new UnexpectedResult(generic.apply(e.result, right.execute(frame)));
+            }
+        }
+
+        final int right(Frame frame, int leftValue) throws UnexpectedResult {
+            try {
+                return right.executeInt(frame);
+            } catch (UnexpectedResult e) {
+                if (e.result instanceof Integer i) {
+                    return i;
+                }
+                throw new UnexpectedResult(replace(new Generic(operator, left, right)).apply(leftValue, e.result));
+            }
+        }
+    }
+
+    static final class Add extends IntBinary {
+        Add(Node left, Node right) {
+            super(TokenType.PLUS, left, right);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            int left = left(frame);
+            return left + right(frame, left);
+        }
+    }
+
+    static final class Subtract extends IntBinary {
+        Subtract(Node left, Node right) {
+            super(TokenType.MINUS, left, right);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            int left = left(frame);
+            return left - right(frame, left);
+        }
+    }
+
+    static final class Multiply extends IntBinary {
+        Multiply(Node left, Node right) {
+            super(TokenType.MUL, left, right);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            int left = left(frame);
+            return left * right(frame, left);
+        }
+    }
+
+    static final class Divide extends IntBinary {
+        Divide(Node left, Node right) {
+            super(TokenType.DIV, left, right);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            int left = left(frame);
+            return left / right(frame, left);
+        }
+    }
+
+    static final class Remainder extends IntBinary {
+        Remainder(Node left, Node right) {
+            super(TokenType.MOD, left, right);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            int left = left(frame);
+            return left % right(frame, left);
+        }
+    }
+
+    // both operands are always evaluated, like in the Interpreter
+    static final class And extends IntBinary {
+        And(Node left, Node right) {
+            super(TokenType.AND, left, right);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            int left = left(frame);
+            return (left != 0 & right(frame, left) != 0) ? 1 : 0;
+        }
+    }
+
+    static final class Or extends IntBinary {
+        Or(Node left, Node right) {
+            super(TokenType.OR, left, right);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            int left = left(frame);
+            return (left != 0 | right(frame, left) != 0) ? 1 : 0;
+        }
+    }
+
+    static final class Equal extends IntBinary {
+        Equal(Node left, Node right) {
+            super(TokenType.EQ, left, right);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            int left = left(frame);
+            return left == right(frame, left) ? 1 : 0;
+        }
+    }
+
+    static final class NotEqual extends IntBinary {
+        NotEqual(Node left, Node right) {
+            super(TokenType.NEQ, left, right);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            int left = left(frame);
+            return left != right(frame, left) ? 1 : 0;
+        }
+    }
+
+    static final class Less extends IntBinary {
+        Less(Node left, Node right) {
+            super(TokenType.LT, left, right);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            int left = left(frame);
+            return left < right(frame, left) ? 1 : 0;
+        }
+    }
+
+    static final class Greater extends IntBinary {
+        Greater(Node left, Node right) {
+            super(TokenType.GT, left, right);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            int left = left(frame);
+            return left > right(frame, left) ? 1 : 0;
+        }
+    }
+
+    static final class LessEqual extends IntBinary {
+        LessEqual(Node left, Node right) {
+            super(TokenType.LTE, left, right);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            int left = left(frame);
+            return left <= right(frame, left) ? 1 : 0;
+        }
+    }
+
+    static final class GreaterEqual extends IntBinary {
+        GreaterEqual(Node left, Node right) {
+            super(TokenType.GTE, left, right);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            int left = left(frame);
+            return left >= right(frame, left) ? 1 : 0;
+        }
+    }
+
+    // == and != on two strings
+    static final class StringEqual extends Binary {
+        StringEqual(TokenType operator, Node left, Node right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object leftValue = left.execute(frame);
+            Object rightValue = right.execute(frame);
+            if (leftValue instanceof String l && rightValue instanceof String r) {
+                return l.equals(r) == (operator == TokenType.EQ) ? 1 : 0;
+            }
+            return replace(new Generic(operator, left, right)).apply(leftValue, rightValue);
+        }
+    }
+
+    // any operator on any values, the way the Interpreter applies it
+    static final class Generic extends Node {
+        private final TokenType operator;
+        private Node left;
+        private Node right;  // null for a unary operator
+
+        Generic(TokenType operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            left.parent = this;
+            if (right != null) {
+                right.parent = this;
+            }
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object leftValue = left.execute(frame);
+            return apply(leftValue, right == null ? null : right.execute(frame));
+        }
+
+        Object apply(Object leftValue, Object rightValue) {
+            return Interpreter.apply(operator, leftValue, rightValue);
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            if (left == child) {
+                left = node;
+            } else {
+                right = node;
+            }
+        }
+    }
+}
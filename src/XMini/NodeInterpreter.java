@@ -0,0 +1,188 @@
+package XMini;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Runs a program on a tree of self-specializing nodes (see Node) built once from its statements.
+ *
+ * A program runs once per call to run(), on fresh variables, and the nodes keep the specializations they picked from
+ * one run to the next. A program that runs many times, like a hot script, therefore ends up executing int operators
+ * that call each other without switches, casts or boxing.
+ *
+ * The nodes evaluate expressions recursively, so expressions nested deeper than MAX_DEPTH are refused with a
+ * TooDeepException, for the caller to fall back to the Interpreter.
+ */
+class NodeInterpreter {
+    static final int MAX_DEPTH = 1000;
+
+    static class TooDeepException extends RuntimeException {
+        TooDeepException() {
+            super("Expression nested too deeply for the node interpreter");
+        }
+    }
+
+    // the parent of the tree of a statement, so that its first node can replace itself too
+    private static final class Root extends Node {
+        private Node expr;
+        private boolean ints = true;  // false once the statement had a value that is not an int
+
+        Root(Node expr) {
+            this.expr = expr;
+            expr.parent = this;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            return expr.execute(frame);
+        }
+
+        @Override
+        int executeInt(Frame frame) throws UnexpectedResult {
+            return expr.executeInt(frame);
+        }
+
+        @Override
+        void replaceChild(Node child, Node node) {
+            expr = node;
+        }
+    }
+
+    private final Expr.Statement[] statements;
+    private final Root[] roots;
+    private final int slots;
+
+    NodeInterpreter(List<Expr.Statement> statements) {
+        for (Expr.Statement statement : statements) {
+            checkDepth(statement.expr);
+        }
+        Resolver resolver = new Resolver();
+        resolver.resolve(statements);
+        this.statements = statements.toArray(new Expr.Statement[0]);
+        this.roots = new Root[this.statements.length];
+        for (int i = 0; i < roots.length; i++) {
+            roots[i] = new Root(build(this.statements[i].expr));
+        }
+        this.slots = resolver.size();
+    }
+
+    // checked before anything else, so that a caller falling back to the Interpreter gets no warnings twice
+    private static void checkDepth(Expr expr) {
+        ArrayDeque<Expr> pending = new ArrayDeque<>();
+        ArrayDeque<Integer> depths = new ArrayDeque<>();
+        pending.push(expr);
+        depths.push(1);
+        while (!pending.isEmpty()) {
+            Expr node = pending.pop();
+            int depth = depths.pop();
+            if (depth > MAX_DEPTH) {
+                throw new TooDeepException();
+            }
+            if (node instanceof Expr.Arithmetic arithmetic) {
+                if (arithmetic.right != null) {
+                    pending.push(arithmetic.right);
+                    depths.push(depth + 1);
+                }
+                pending.push(arithmetic.left);
+                depths.push(depth + 1);
+            }
+        }
+    }
+
+    // Builds the nodes of a resolved expression without recursion: the expression is listed in prefix order, and in
+    // reverse prefix order the operands of an operator are built before it, the left one last.
+    private static Node build(Expr expr) {
+        List<Expr> prefix = new ArrayList<>();
+        ArrayDeque<Expr> pending = new ArrayDeque<>();
+        pending.push(expr);
+        while (!pending.isEmpty()) {
+            Expr node = pending.pop();
+            prefix.add(node);
+            if (node instanceof Expr.Arithmetic arithmetic) {
+                if (arithmetic.right != null) {
+                    pending.push(arithmetic.right);
+                }
+                pending.push(arithmetic.left);
+            }
+        }
+        ArrayDeque<Node> built = new ArrayDeque<>();
+        for (int i = prefix.size() - 1; i >= 0; i--) {
+            built.push(node(prefix.get(i), built));
+        }
+        return built.pop();
+    }
+
+    private static Node node(Expr expr, ArrayDeque<Node> built) {
+        if (expr instanceof Expr.Arithmetic arithmetic) {
+            TokenType operator = arithmetic.operator.type();
+            Node left = built.pop();
+            return arithmetic.right == null ? new Node.UninitializedUnary(operator, left)
+                    : new Node.UninitializedBinary(operator, left, built.pop());
+        } else if (expr instanceof Expr.Variable variable) {
+            if (variable.slot < 0) {
+                return new Node.Undefined(variable.var_name.text());
+            }
+            return new Node.Read(variable.slot);
+        }
+        Expr.Literal literal = (Expr.Literal) expr;
+        if (literal.constant instanceof Integer value) {
+            return new Node.Constant(value);
+        } else if (literal.constant instanceof String text) {
+            return new Node.Text(text);
+        }
+        return new Node.BadNumber(literal.value.text());
+    }
+
+    // runs the program on fresh variables
+    void run(OutputSink out) {
+        Node.Frame frame = new Node.Frame(slots);
+        for (int i = 0; i < statements.length; i++) {
+            Expr.Statement statement = statements[i];
+            Root root = roots[i];
+            switch (statement.keyword.type()) {
+                case TEXT, OUTPUT -> {
+                    if (!root.ints) {
+                        out.println(root.execute(frame));
+                        continue;
+                    }
+                    try {
+                        out.println(root.executeInt(frame));
+                    } catch (Node.UnexpectedResult e) {
+                        root.ints = false;
+                        out.println(e.result);
+                    }
+                }
+                case VAR, SET -> {
+                    if (statement.slot == Resolver.UNDEFINED) {
+                        throw new RuntimeException("Variable " + statement.var_name.text() + " not defined");
+                    }
+                    store(frame, statement.slot, root);
+                }
+                default -> throw new RuntimeException("Unexpected token " + statement.keyword);
+            }
+        }
+    }
+
+    private static void store(Node.Frame frame, int slot, Root root) {
+        Object value;
+        if (root.ints) {
+            try {
+                frame.ints[slot] = root.executeInt(frame);
+                frame.values[slot] = Interpreter.INT;
+                return;
+            } catch (Node.UnexpectedResult e) {
+                root.ints = false;
+                value = e.result;
+            }
+        } else {
+            value = root.execute(frame);
+        }
+        if (value instanceof Integer i) {
+            frame.ints[slot] = i;
+            frame.values[slot] = Interpreter.INT;
+        } else {
+            frame.values[slot] = value;
+        }
+    }
+}
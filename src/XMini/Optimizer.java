@@ -0,0 +1,293 @@
+package XMini;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Rewrites the expressions of a program before it is run:
+ *    1. constant folding, e.g. `* 5 + 2 2` becomes `20`
+ *    2. algebraic identities, e.g. `+ 0 x` becomes `x` and `* 0 x` becomes `0`
+ *    3. pruning of && and || whose result is decided by a constant operand, e.g. `&& 0 x` becomes `0`
+ *    4. dead-store elimination: a `var` or `set` whose value is overwritten or never read is dropped, see removeDeadStores
+ *
+ * The semantics of the program are kept, including its runtime errors: a subtree that throws (division by zero,
+ * a string used as an int, an undefined variable) is never folded or dropped. Constants are folded by the Interpreter
+ * itself, so folding cannot disagree with it.
+ */
+public class Optimizer {
+    private enum Kind {
+        INT,
+        STRING,
+        UNKNOWN
+    }
+
+    // an optimized expression, the kind of its value and whether evaluating it can throw
+    private record Result(Expr expr, Kind kind, boolean safe) {
+    }
+
+    private final Map<String, Kind> kinds = new HashMap<>();
+    private final Interpreter evaluator = new Interpreter();
+    private final boolean keepFinalValues;
+    private int eliminated = 0;
+    private int deadStores = 0;
+
+    public Optimizer() {
+        this(false);
+    }
+
+    // with keepFinalValues, the values of the variables at the end of the program count as read, e.g. because they
+    // are saved to a checkpoint
+    Optimizer(boolean keepFinalValues) {
+        this.keepFinalValues = keepFinalValues;
+    }
+
+    List<Expr.Statement> optimize(List<Expr.Statement> statements) {
+        List<Expr.Statement> optimized = new ArrayList<>(statements.size());
+        boolean[] removable = new boolean[statements.size()];
+        Set<String> defined = new HashSet<>();
+        for (Expr.Statement statement : statements) {
+            Result result = optimize(statement.expr);
+            eliminated += size(statement.expr) - size(result.expr);
+            TokenType type = statement.keyword.type();
+            if (type == TokenType.VAR || type == TokenType.SET) {
+                String name = statement.var_name.text();
+                // a set on an undefined variable throws
+                removable[optimized.size()] = result.safe && (type == TokenType.VAR || defined.contains(name));
+                kinds.put(name, result.kind);
+                if (type == TokenType.VAR) {
+                    defined.add(name);
+                }
+            }
+            optimized.add(result.expr == statement.expr ? statement
+                    : new Expr.Statement(statement.keyword, statement.var_name, result.expr));
+        }
+        return removeDeadStores(optimized, removable);
+    }
+
+    // number of expression nodes removed by all calls to optimize so far
+    int eliminated() {
+        return eliminated;
+    }
+
+    // number of var and set statements removed or reduced to a definition
+    int deadStores() {
+        return deadStores;
+    }
+
+    // Backward liveness pass: a variable is live before a statement if the statement reads it, or if it is live after
+    // the statement and the statement does not write it. A var or set of a variable that is not live after it is a
+    // dead store, and is dropped unless running it could throw. A dead var is kept as `var x 0` when the variable was
+    // defined before, to keep the redefinition warning, or when a later var or set that is kept relies on the
+    // definition.
+    private List<Expr.Statement> removeDeadStores(List<Expr.Statement> statements, boolean[] removable) {
+        Set<String> live = new HashSet<>();
+        Set<String> assignedLater = new HashSet<>();  // by a var or set that is kept
+        Map<String, Integer> definitions = new HashMap<>();  // number of var statements of each name not passed yet
+        for (Expr.Statement statement : statements) {
+            if (statement.keyword.type() == TokenType.VAR) {
+                definitions.merge(statement.var_name.text(), 1, Integer::sum);
+                if (keepFinalValues) {
+                    live.add(statement.var_name.text());
+                }
+            }
+        }
+
+        List<Expr.Statement> kept = new ArrayList<>(statements.size());
+        ArrayDeque<Expr> stack = new ArrayDeque<>();
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            Expr.Statement statement = statements.get(i);
+            TokenType type = statement.keyword.type();
+            if (type != TokenType.VAR && type != TokenType.SET) {
+                addReads(statement.expr, live, stack);
+                kept.add(statement);
+                continue;
+            }
+            String name = statement.var_name.text();
+            // whether an earlier var defines the variable too
+            boolean redefinition = type == TokenType.VAR && definitions.merge(name, -1, Integer::sum) > 0;
+            if (live.contains(name) || !removable[i]) {
+                live.remove(name);
+                addReads(statement.expr, live, stack);
+                kept.add(statement);
+            } else if (type == TokenType.VAR && (redefinition || assignedLater.contains(name))) {
+                if (statement.expr instanceof Expr.Literal) {
+                    kept.add(statement);
+                } else {
+                    deadStores++;
+                    Expr zero = constant(0).expr;
+                    eliminated += size(statement.expr) - size(zero);
+                    kept.add(new Expr.Statement(statement.keyword, statement.var_name, zero));
+                }
+            } else {
+                deadStores++;
+                eliminated += size(statement.expr);
+                continue;
+            }
+            assignedLater.add(name);
+        }
+        Collections.reverse(kept);
+        return kept;
+    }
+
+    // adds the variables the expression reads to live
+    private static void addReads(Expr expr, Set<String> live, ArrayDeque<Expr> stack) {
+        stack.push(expr);
+        while (!stack.isEmpty()) {
+            Expr node = stack.pop();
+            if (node instanceof Expr.Arithmetic arithmetic) {
+                if (arithmetic.right != null) {
+                    stack.push(arithmetic.right);
+                }
+                stack.push(arithmetic.left);
+            } else if (node instanceof Expr.Variable variable) {
+                live.add(variable.var_name.text());
+            }
+        }
+    }
+
+    // Optimizes an expression bottom up without recursion, so it can be nested arbitrarily deep: the expression is
+    // listed in prefix order, and in reverse prefix order the operands of an operator are optimized before it, the
+    // left one last.
+    private Result optimize(Expr expr) {
+        List<Expr> prefix = new ArrayList<>();
+        ArrayDeque<Expr> pending = new ArrayDeque<>();
+        pending.push(expr);
+        while (!pending.isEmpty()) {
+            Expr node = pending.pop();
+            prefix.add(node);
+            if (node instanceof Expr.Arithmetic arithmetic) {
+                if (arithmetic.right != null) {
+                    pending.push(arithmetic.right);
+                }
+                pending.push(arithmetic.left);
+            }
+        }
+        ArrayDeque<Result> results = new ArrayDeque<>();
+        for (int i = prefix.size() - 1; i >= 0; i--) {
+            Expr node = prefix.get(i);
+            if (node instanceof Expr.Literal literal) {
+                results.push(new Result(literal, literal.constant instanceof String ? Kind.STRING : Kind.INT,
+                        literal.constant != null));
+            } else if (node instanceof Expr.Variable variable) {
+                Kind kind = kinds.getOrDefault(variable.var_name.text(), Kind.UNKNOWN);
+                results.push(new Result(variable, kind, kind != Kind.UNKNOWN));
+            } else if (node instanceof Expr.Arithmetic arithmetic) {
+                Result left = results.pop();
+                results.push(optimizeArithmetic(arithmetic, left, arithmetic.right == null ? null : results.pop()));
+            } else {
+                throw new RuntimeException("Unknown expression " + node);
+            }
+        }
+        return results.pop();
+    }
+
+    // combines the optimized operands of an operator
+    private Result optimizeArithmetic(Expr.Arithmetic expr, Result left, Result right) {
+        Expr node = left.expr == expr.left && (right == null || right.expr == expr.right) ? expr
+                : new Expr.Arithmetic(expr.operator, left.expr, right == null ? null : right.expr);
+
+        if (left.expr instanceof Expr.Literal && (right == null || right.expr instanceof Expr.Literal)) {
+            try {
+                return constant((Integer) evaluator.visitArithmetic((Expr.Arithmetic) node));
+            } catch (RuntimeException e) {
+                // the expression throws at runtime, keep it
+            }
+        }
+
+        TokenType type = expr.operator.type();
+        if (right == null) {
+            if (type == TokenType.TILDE && left.expr instanceof Expr.Arithmetic inner
+                    && inner.operator.type() == TokenType.TILDE && kindOf(inner.left) == Kind.INT) {
+                return new Result(inner.left, Kind.INT, left.safe);  // ~ ~ x
+            }
+            return new Result(node, Kind.INT, left.safe && left.kind == Kind.INT);
+        }
+
+        Integer l = intConstant(left.expr);
+        Integer r = intConstant(right.expr);
+        boolean leftInt = left.kind == Kind.INT;
+        boolean rightInt = right.kind == Kind.INT;
+        switch (type) {
+            case PLUS -> {
+                if (isConstant(l, 0) && rightInt) return right;
+                if (isConstant(r, 0) && leftInt) return left;
+            }
+            case MINUS -> {
+                if (isConstant(r, 0) && leftInt) return left;
+            }
+            case MUL -> {
+                if (isConstant(l, 1) && rightInt) return right;
+                if (isConstant(r, 1) && leftInt) return left;
+                if (isConstant(l, 0) && rightInt && right.safe) return constant(0);
+                if (isConstant(r, 0) && leftInt && left.safe) return constant(0);
+            }
+            case DIV -> {
+                if (isConstant(r, 1) && leftInt) return left;
+            }
+            case MOD -> {
+                if (isConstant(r, 1) && leftInt && left.safe) return constant(0);
+            }
+            case AND -> {
+                // the interpreter never casts the right operand when the left one is 0
+                if (isConstant(l, 0) && right.safe) return constant(0);
+                if (isConstant(r, 0) && leftInt && left.safe) return constant(0);
+            }
+            case OR -> {
+                if (l != null && l != 0 && right.safe) return constant(1);
+                if (r != null && r != 0 && leftInt && left.safe) return constant(1);
+            }
+        }
+
+        boolean safe = left.safe && right.safe && switch (type) {
+            case EQ, NEQ -> true;
+            case DIV, MOD -> leftInt && rightInt && r != null && r != 0;
+            default -> leftInt && rightInt;
+        };
+        return new Result(node, Kind.INT, safe);
+    }
+
+    private Kind kindOf(Expr expr) {
+        if (expr instanceof Expr.Literal literal) {
+            return literal.constant instanceof String ? Kind.STRING : Kind.INT;
+        } else if (expr instanceof Expr.Variable variable) {
+            return kinds.getOrDefault(variable.var_name.text(), Kind.UNKNOWN);
+        }
+        return Kind.INT;
+    }
+
+    private static Result constant(int value) {
+        return new Result(new Expr.Literal(new Token(TokenType.NUMBER, Integer.toString(value))), Kind.INT, true);
+    }
+
+    private static Integer intConstant(Expr expr) {
+        return expr instanceof Expr.Literal literal && literal.constant instanceof Integer value ? value : null;
+    }
+
+    private static boolean isConstant(Integer value, int expected) {
+        return value != null && value == expected;
+    }
+
+    // number of nodes of the expression
+    private static int size(Expr expr) {
+        int size = 0;
+        ArrayDeque<Expr> stack = new ArrayDeque<>();
+        stack.push(expr);
+        while (!stack.isEmpty()) {
+            Expr node = stack.pop();
+            size++;
+            if (node instanceof Expr.Arithmetic arithmetic) {
+                if (arithmetic.right != null) {
+                    stack.push(arithmetic.right);
+                }
+                stack.push(arithmetic.left);
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,175 @@
+package XMini;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * Where the `text` and `output` statements write to. Lines are collected in a reusable byte buffer and written to the
+ * underlying channel according to the flush policy, instead of going through System.out for every statement.
+ * Ints are formatted straight into the buffer, and ASCII strings are copied without going through an encoder.
+ */
+class OutputSink {
+    enum FlushPolicy {
+        LINE,  // write out every line, like System.out
+        SIZE,  // write out whenever the buffer is full
+        END    // grow the buffer and only write it out on flush()
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+    private static final String ASCII = ascii();
+
+    private final WritableByteChannel channel;
+    private final FlushPolicy policy;
+    private final CharsetEncoder encoder;
+    private final boolean asciiCompatible;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    OutputSink(WritableByteChannel channel, FlushPolicy policy) {
+        this.channel = channel;
+        this.policy = policy;
+        Charset charset = Charset.defaultCharset();
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.asciiCompatible = Arrays.equals(ASCII.getBytes(charset), ASCII.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    OutputSink(OutputStream out, FlushPolicy policy) {
+        this(Channels.newChannel(out), policy);
+    }
+
+    // writes to the standard output file descriptor directly, bypassing System.out
+    static OutputSink stdout(FlushPolicy policy) {
+        return new OutputSink(new FileOutputStream(FileDescriptor.out).getChannel(), policy);
+    }
+
+    void println(int value) {
+        ensureCapacity(11 + LINE_SEPARATOR.length);
+        byte[] bytes = buffer.array();
+        int end = buffer.position();
+        long v = value;  // Integer.MIN_VALUE cannot be negated as an int
+        if (v < 0) {
+            bytes[end++] = '-';
+            v = -v;
+        }
+        int digits = 1;
+        for (long rest = v / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = end + digits - 1; i >= end; i--) {
+            bytes[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        buffer.position(end + digits);
+        endLine();
+    }
+
+    void println(String value) {
+        if (asciiCompatible && isAscii(value)) {
+            ensureCapacity(value.length() + LINE_SEPARATOR.length);
+            byte[] bytes = buffer.array();
+            int position = buffer.position();
+            for (int i = 0; i < value.length(); i++) {
+                bytes[position + i] = (byte) value.charAt(i);
+            }
+            buffer.position(position + value.length());
+        } else {
+            encode(value);
+        }
+        endLine();
+    }
+
+    void println(Object value) {
+        if (value instanceof Integer i) {
+            println(i.intValue());
+        } else {
+            println(String.valueOf(value));
+        }
+    }
+
+    void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void endLine() {
+        ensureCapacity(LINE_SEPARATOR.length);
+        buffer.put(LINE_SEPARATOR);
+        if (policy == FlushPolicy.LINE) {
+            flush();
+        }
+    }
+
+    private void encode(String value) {
+        CharBuffer chars = CharBuffer.wrap(value);
+        encoder.reset();
+        while (encoder.encode(chars, buffer, true).isOverflow()) {
+            makeRoom();
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            makeRoom();
+        }
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() < bytes) {
+            makeRoom();
+            if (buffer.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(buffer.position() + bytes);
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+    }
+
+    // makes room in the buffer, by writing it out or by growing it depending on the policy
+    private void makeRoom() {
+        if (policy == FlushPolicy.END || buffer.position() == 0) {
+            ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        } else {
+            flush();
+        }
+    }
+
+    private static String ascii() {
+        StringBuilder sb = new StringBuilder();
+        for (char c = 0; c < 0x80; c++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,198 @@
+package XMini;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Runs a whole program on a fork-join pool, running statements that do not depend on each other at the same time.
+ *
+ * A statement is started once every statement it depends on (see Dependencies) is done, so chains of statements on
+ * different variables run side by side. The workers share the variables of one Interpreter, each with its own
+ * evaluation state; the dependencies guarantee that statements running at the same time never touch the same
+ * variable, and the atomic counters they are released through order their writes before the reads.
+ *
+ * Text and output statements only compute their value on the pool. The calling thread prints the values in program
+ * order, each as soon as the statements before it are done, so the output is the same as a sequential run, up to the
+ * first runtime error, which is then thrown on the calling thread. Statements depending on a failed one are skipped.
+ */
+class ParallelInterpreter {
+    private static final int BATCH = 64;  // statements a task runs before handing the rest of its work to a new task
+    private static final Object DONE = new Object();  // the result of a var or set statement
+    private static final Object SKIPPED = new Object();
+
+    private record Failure(Throwable error) {
+    }
+
+    private final Interpreter interpreter;
+    private final OutputSink out;
+    private final ForkJoinPool pool;
+
+    ParallelInterpreter(OutputSink out) {
+        this(new Interpreter(out), out);
+    }
+
+    // runs programs on the variables of the given interpreter, which prints to out
+    ParallelInterpreter(Interpreter interpreter, OutputSink out) {
+        this(interpreter, out, ForkJoinPool.commonPool());
+    }
+
+    ParallelInterpreter(Interpreter interpreter, OutputSink out, ForkJoinPool pool) {
+        this.interpreter = interpreter;
+        this.out = out;
+        this.pool = pool;
+    }
+
+    void interpret(List<Expr.Statement> statements) {
+        interpreter.resolve(statements);
+        new Run(statements.toArray(new Expr.Statement[0]), interpreter).run();
+    }
+
+    // the state of running one program
+    private class Run {
+        private final Expr.Statement[] statements;
+        private final Dependencies dependencies;
+        private final ThreadLocal<Interpreter> workers;
+        private final AtomicIntegerArray waitingFor;  // number of unfinished statements each statement depends on
+        private final boolean[] skip;  // set before the last dependency of a statement is released
+        private final AtomicReferenceArray<Object> results;
+        private final Thread caller = Thread.currentThread();
+        private volatile int awaited = -1;  // the statement the calling thread is parked on
+        private volatile boolean cancelled = false;
+
+        Run(Expr.Statement[] statements, Interpreter interpreter) {
+            this.statements = statements;
+            this.dependencies = new Dependencies(Arrays.asList(statements));
+            this.workers = ThreadLocal.withInitial(interpreter::fork);
+            this.skip = new boolean[statements.length];
+            this.results = new AtomicReferenceArray<>(statements.length);
+            int[] counts = new int[statements.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = dependencies.count(i);
+            }
+            this.waitingFor = new AtomicIntegerArray(counts);
+        }
+
+        void run() {
+            int[] ready = new int[BATCH];
+            int size = 0;
+            for (int i = 0; i < statements.length; i++) {
+                if (dependencies.count(i) == 0) {
+                    ready[size++] = i;
+                    if (size == BATCH) {
+                        pool.execute(new Task(ready, size));
+                        ready = new int[BATCH];
+                        size = 0;
+                    }
+                }
+            }
+            if (size > 0) {
+                pool.execute(new Task(ready, size));
+            }
+
+            try {
+                for (int i = 0; i < statements.length; i++) {
+                    Object result = await(i);
+                    if (result instanceof Failure failure) {
+                        if (failure.error() instanceof Error error) {
+                            throw error;
+                        }
+                        throw (RuntimeException) failure.error();
+                    }
+                    if (result != DONE) {
+                        out.println(result);
+                    }
+                }
+            } finally {
+                cancelled = true;
+            }
+        }
+
+        private Object await(int statement) {
+            Object result = results.get(statement);
+            if (result != null) {
+                return result;
+            }
+            awaited = statement;
+            while ((result = results.get(statement)) == null) {
+                LockSupport.park(this);
+            }
+            awaited = -1;
+            return result;
+        }
+
+        // runs a statement whose dependencies are all done, and queues the statements that are ready after it
+        private void run(int statement, Interpreter worker, Task task) {
+            Object result;
+            if (skip[statement] || cancelled) {
+                result = SKIPPED;
+            } else {
+                try {
+                    Object value = worker.compute(statements[statement]);
+                    result = value == null ? DONE : value;
+                } catch (RuntimeException | Error e) {
+                    result = new Failure(e);
+                }
+            }
+            results.set(statement, result);
+            if (awaited == statement) {
+                LockSupport.unpark(caller);
+            }
+
+            boolean failed = result instanceof Failure || result == SKIPPED;
+            int end = dependencies.firstSuccessor(statement + 1);
+            for (int k = dependencies.firstSuccessor(statement); k < end; k++) {
+                int successor = dependencies.successor(k);
+                if (failed) {
+                    skip[successor] = true;
+                }
+                if (waitingFor.decrementAndGet(successor) == 0) {
+                    task.add(successor);
+                }
+            }
+        }
+
+        // Runs a queue of ready statements, and the statements that become ready as it goes. When the queue grows
+        // long, half of it is handed to a new task that other workers can steal.
+        private class Task extends RecursiveAction {
+            private int[] queue;
+            private int head = 0;
+            private int tail;
+
+            Task(int[] queue, int size) {
+                this.queue = queue;
+                this.tail = size;
+            }
+
+            @Override
+            protected void compute() {
+                Interpreter worker = workers.get();
+                while (head < tail) {
+                    run(queue[head++], worker, this);
+                    if (tail - head > BATCH) {
+                        int half = (tail - head) / 2;
+                        new Task(Arrays.copyOfRange(queue, tail - half, tail), half).fork();
+                        tail -= half;
+                    }
+                }
+            }
+
+            void add(int statement) {
+                if (tail == queue.length) {
+                    if (head > 0) {
+                        System.arraycopy(queue, head, queue, 0, tail - head);
+                        tail -= head;
+                        head = 0;
+                    } else {
+                        queue = Arrays.copyOf(queue, queue.length * 2);
+                    }
+                }
+                queue[tail++] = statement;
+            }
+        }
+    }
+}
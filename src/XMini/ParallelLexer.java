@@ -0,0 +1,234 @@
+package XMini;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Lexes a large input on a fork-join pool, giving the same tokens, and the same errors, as Lexer.getTokens().
+ *
+ * The input is split into chunks at line breaks, and each chunk is lexed on its own as if it started a file. That is
+ * only right if no string, `//` comment or bare-word `text` argument crosses the boundary, which cannot be known
+ * without lexing what comes before. So the chunks are stitched together in order: the lexer of a chunk goes on past
+ * its end up to the first token starting there, and the next chunk is taken from that token on, provided it lexed a
+ * token at the same position in the same state. If it did not, its boundary was wrong, and that part of the input is
+ * lexed again from the state the previous chunk ended in, up to the end of the chunk. An error in a chunk only counts
+ * once the chunk is known to be in sync, so a chunk starting inside a string never reports errors of its own.
+ *
+ * Usage: java XMini.ParallelLexer <file>
+ *    Lexes the file sequentially and in parallel, checks that the tokens are the same, and reports the speedup.
+ */
+class ParallelLexer {
+    static final int MIN_CHUNK = 1 << 20;  // smaller inputs are lexed on the calling thread
+
+    // the tokens a lexer found in [start, end), and where it stopped
+    private static final class Chunk {
+        final List<Token> tokens = new ArrayList<>();
+        int[] starts = new int[256];  // the position of each token
+        boolean[] afterText = new boolean[256];  // the state the lexer was in there
+        Lexer.LexerException error;  // the error that stopped the lexer before end
+        // the first token starting at or after end, which the next chunk has to agree on, or -1 at the end of the input
+        int next = -1;
+        boolean nextAfterText;
+        int nextLine;
+        int nextLinePos;
+
+        void add(Token token, int start, boolean afterText) {
+            int size = tokens.size();
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                this.afterText = Arrays.copyOf(this.afterText, size * 2);
+            }
+            starts[size] = start;
+            this.afterText[size] = afterText;
+            tokens.add(token);
+        }
+
+        // the index of the token starting at the given position in the given state, or -1
+        int indexOf(int start, boolean afterText) {
+            int index = Arrays.binarySearch(starts, 0, tokens.size(), start);
+            return index >= 0 && this.afterText[index] == afterText ? index : -1;
+        }
+    }
+
+    private final String input;
+    private final ForkJoinPool pool;
+    private final int minChunk;
+
+    ParallelLexer(String input) {
+        this(input, ForkJoinPool.commonPool(), MIN_CHUNK);
+    }
+
+    ParallelLexer(String input, ForkJoinPool pool, int minChunk) {
+        this.input = input;
+        this.pool = pool;
+        this.minChunk = minChunk;
+    }
+
+    List<Token> getTokens() {
+        int[] bounds = bounds(Math.max(1, Math.min(input.length() / minChunk, 4 * pool.getParallelism())));
+        int chunks = bounds.length - 1;
+        if (chunks == 1) {
+            return new Lexer(input).getTokens();
+        }
+        // the line each chunk starts on, from the line breaks before it
+        int[] newlines = pool.invoke(task(() -> {
+            List<RecursiveTask<Integer>> counts = new ArrayList<>();
+            for (int k = 0; k < chunks; k++) {
+                int from = bounds[k];
+                int to = bounds[k + 1];
+                counts.add(task(() -> newlines(from, to)));
+            }
+            ForkJoinTask.invokeAll(counts);
+            return counts.stream().mapToInt(ForkJoinTask::join).toArray();
+        }));
+        int[] lines = new int[chunks];
+        lines[0] = 1;
+        for (int k = 1; k < chunks; k++) {
+            lines[k] = lines[k - 1] + newlines[k - 1];
+        }
+
+        List<RecursiveTask<Chunk>> tasks = new ArrayList<>();
+        for (int k = 0; k < chunks; k++) {
+            int start = bounds[k];
+            int end = bounds[k + 1];
+            int line = lines[k];
+            tasks.add(task(() -> lex(start, end, line, 0, false)));
+        }
+        pool.invoke(task(() -> {
+            ForkJoinTask.invokeAll(tasks);
+            return null;
+        }));
+
+        List<Token> tokens = new ArrayList<>();
+        Chunk previous = null;
+        for (int k = 0; k < chunks; k++) {
+            Chunk chunk = tasks.get(k).join();
+            int from = 0;
+            if (previous != null) {
+                if (previous.next < 0) {
+                    break;  // the previous chunk lexed the rest of the input
+                }
+                from = chunk.indexOf(previous.next, previous.nextAfterText);
+                if (from < 0) {
+                    // the chunk did not start on a token boundary: lex it again from where the previous one stopped
+                    chunk = lex(previous.next, bounds[k + 1], previous.nextLine, previous.nextLinePos,
+                            previous.nextAfterText);
+                    from = 0;
+                }
+            }
+            tokens.addAll(chunk.tokens.subList(from, chunk.tokens.size()));
+            if (chunk.error != null) {
+                throw chunk.error;
+            }
+            previous = chunk;
+        }
+        tokens.add(Lexer.fixed(TokenType.EOF));
+        return tokens;
+    }
+
+    // chunk boundaries, each just after a line break
+    private int[] bounds(int chunks) {
+        int[] bounds = new int[chunks + 1];
+        int size = 1;
+        for (int k = 1; k < chunks; k++) {
+            int bound = input.indexOf('\n', (int) ((long) input.length() * k / chunks)) + 1;
+            if (bound > bounds[size - 1]) {
+                bounds[size++] = bound;
+            }
+        }
+        if (bounds[size - 1] < input.length() || size == 1) {
+            bounds[size++] = input.length();
+        }
+        return Arrays.copyOf(bounds, size);
+    }
+
+    private int newlines(int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (input.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // lexes the tokens starting in [start, end), from the given state
+    private Chunk lex(int start, int end, int line, int linePos, boolean afterText) {
+        Chunk chunk = new Chunk();
+        Lexer lexer = Lexer.resume(input, start, line, linePos, afterText);
+        while (true) {
+            Token token;
+            try {
+                token = lexer.nextToken();
+            } catch (Lexer.LexerException e) {
+                if (lexer.tokenStart() < end) {
+                    chunk.error = e;
+                    return chunk;
+                }
+                token = null;  // an error in the next chunk, which it reports itself once it is in sync
+            }
+            if (token != null && token.type() == TokenType.EOF) {
+                return chunk;
+            }
+            if (lexer.tokenStart() >= end) {
+                chunk.next = lexer.tokenStart();
+                chunk.nextAfterText = lexer.tokenAfterText();
+                chunk.nextLine = lexer.tokenLine();
+                chunk.nextLinePos = lexer.tokenLinePos();
+                return chunk;
+            }
+            chunk.add(token, lexer.tokenStart(), lexer.tokenAfterText());
+        }
+    }
+
+    private interface Body<T> {
+        T run();
+    }
+
+    private static <T> RecursiveTask<T> task(Body<T> body) {
+        return new RecursiveTask<>() {
+            @Override
+            protected T compute() {
+                return body.run();
+            }
+        };
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("Usage: java XMini.ParallelLexer <file>");
+            System.exit(1);
+        }
+        String input = Files.readString(Paths.get(args[0]), Charset.defaultCharset());
+        int threads = ForkJoinPool.commonPool().getParallelism();
+        int cores = Runtime.getRuntime().availableProcessors();
+        long sequential = Long.MAX_VALUE;
+        long parallel = Long.MAX_VALUE;
+        List<Token> expected = null;
+        List<Token> tokens = null;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            expected = new Lexer(input).getTokens();
+            long middle = System.nanoTime();
+            tokens = new ParallelLexer(input).getTokens();
+            long end = System.nanoTime();
+            sequential = Math.min(sequential, middle - start);
+            parallel = Math.min(parallel, end - middle);
+        }
+        if (!tokens.equals(expected)) {
+            System.out.println("Tokens differ from Lexer.getTokens()");
+            System.exit(1);
+        }
+        System.out.printf("%d tokens: sequential %.1f ms, parallel %.1f ms on %d threads, speedup %.2f on %d cores"
+                + " (%.0f%% of linear)%n", tokens.size(), sequential / 1e6, parallel / 1e6, threads,
+                (double) sequential / parallel, cores, 100.0 * sequential / parallel / cores);
+    }
+}
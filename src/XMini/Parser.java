@@ -1,7 +1,10 @@
 package XMini;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class Parser {
     private static class ParserException extends RuntimeException {
@@ -9,23 +12,44 @@ public class Parser {
             super(message);
         }
     }
-    private final List<Token> tokens;
-    private int pos = 0;
+
+    private static final byte UNARY = 0;
+    private static final byte NEEDS_LEFT = 1;
+    private static final byte NEEDS_RIGHT = 2;
+
+    private final Supplier<Token> tokens;
+    private Token current = null;
 
     public Parser(List<Token> tokens) {
+        this(supplier(tokens.iterator()));
+    }
+
+    // Pulls tokens from the lexer only as the parser needs them
+    public Parser(Lexer lexer) {
+        this(lexer::nextToken);
+    }
+
+    Parser(Supplier<Token> tokens) {
         this.tokens = tokens;
     }
 
+    private static Supplier<Token> supplier(Iterator<Token> tokens) {
+        return () -> tokens.hasNext() ? tokens.next() : new Token(TokenType.EOF, "");
+    }
 
     private Token peek() {
-        return tokens.get(pos);
+        if (current == null) {
+            current = tokens.get();
+        }
+        return current;
     }
 
     private Token advance() {
-        if (peek().type() == TokenType.EOF) {
-            return peek();
+        Token token = peek();
+        if (token.type() != TokenType.EOF) {
+            current = null;
         }
-        return tokens.get(pos++);
+        return token;
     }
 
     private boolean match(TokenType... type) {
@@ -40,12 +64,69 @@ public class Parser {
 
     public List<Expr.Statement> parse() {
         List<Expr.Statement> statements = new ArrayList<>();
-        while (!match(TokenType.EOF)) {
-            statements.add(parseStatement());
+        Expr.Statement statement;
+        while ((statement = next()) != null) {
+            statements.add(statement);
         }
         return statements;
     }
 
+    // Parses the whole input into an Arena instead of trees, failing like parse() on the same input
+    public Arena parseArena() {
+        Arena arena = new Arena();
+        int[] waiting = new int[8];  // the operators whose operands are not complete, innermost last
+        byte[] states = new byte[8];
+        while (!match(TokenType.EOF)) {
+            arena.startStatement();
+            if (match(TokenType.TEXT, TokenType.OUTPUT)) {
+                arena.add(advance());
+            } else if (match(TokenType.VAR, TokenType.SET)) {
+                arena.add(advance());
+                arena.add(advance());
+            } else {
+                throw new ParserException("Unexpected token " + peek());
+            }
+            // the same walk as parseExpression(), except that the nodes are added in prefix order as they are read
+            int size = 0;
+            while (true) {
+                switch (peek().type()) {
+                    case NUMBER, STRING, IDENTIFIER -> arena.add(advance());
+                    case TEXT, OUTPUT, VAR, SET, EOF -> throw new ParserException("Unexpected token " + peek());
+                    default -> {
+                        if (size == waiting.length) {
+                            waiting = Arrays.copyOf(waiting, size * 2);
+                            states = Arrays.copyOf(states, size * 2);
+                        }
+                        Token operator = advance();
+                        boolean unary = operator.type() == TokenType.TILDE || operator.type() == TokenType.BANG;
+                        states[size] = unary ? UNARY : NEEDS_LEFT;
+                        waiting[size++] = arena.add(operator);
+                        continue;
+                    }
+                }
+                while (size > 0 && states[size - 1] != NEEDS_LEFT) {
+                    size--;
+                }
+                if (size == 0) {
+                    break;
+                }
+                states[size - 1] = NEEDS_RIGHT;
+                arena.rightFollows(waiting[size - 1]);
+            }
+            arena.endStatement();
+        }
+        arena.trim();
+        return arena;
+    }
+
+    // Parses the next statement, or returns null at the end of the input
+    public Expr.Statement next() {
+        if (match(TokenType.EOF)) {
+            return null;
+        }
+        return parseStatement();
+    }
+
     private Expr.Statement parseStatement() {
         if (match(TokenType.TEXT, TokenType.OUTPUT)) {
             var keyword = advance();
@@ -61,25 +142,53 @@ public class Parser {
         }
     }
 
-    // parse prefix expression
+    // Parses a prefix expression without recursion, so it can be nested arbitrarily deep. Operators wait on an
+    // explicit stack until their operands are complete: a leaf completes the innermost waiting operator (or becomes
+    // its left operand), and a completed operator completes the one below it in turn.
     private Expr parseExpression() {
-        if (match(TokenType.NUMBER, TokenType.STRING)) {
-            return new Expr.Literal(advance());
-        } else if (match(TokenType.IDENTIFIER)) {
-            return new Expr.Variable(advance());
-        }
-        else if (match(TokenType.TILDE, TokenType.BANG)) {
-            var op = advance();
-            var expr = parseExpression();
-            return new Expr.Arithmetic(op, expr, null);
-        } else if (!match(TokenType.TEXT, TokenType.OUTPUT, TokenType.VAR, TokenType.SET, TokenType.EOF)) {
-            // binary expression
-            var op = advance();
-            var left = parseExpression();
-            var right = parseExpression();
-            return new Expr.Arithmetic(op, left, right);
-        } else {
-            throw new ParserException("Unexpected token " + peek());
+        Token[] operators = null;  // the waiting operators, innermost last
+        Expr[] lefts = null;
+        byte[] states = null;
+        int waiting = 0;
+        while (true) {
+            Expr expr;
+            switch (peek().type()) {
+                case NUMBER, STRING -> expr = new Expr.Literal(advance());
+                case IDENTIFIER -> expr = new Expr.Variable(advance());
+                case TEXT, OUTPUT, VAR, SET, EOF -> throw new ParserException("Unexpected token " + peek());
+                default -> {
+                    // unary or binary expression
+                    if (operators == null) {
+                        operators = new Token[8];
+                        lefts = new Expr[8];
+                        states = new byte[8];
+                    } else if (waiting == operators.length) {
+                        operators = Arrays.copyOf(operators, waiting * 2);
+                        lefts = Arrays.copyOf(lefts, waiting * 2);
+                        states = Arrays.copyOf(states, waiting * 2);
+                    }
+                    Token operator = advance();
+                    boolean unary = operator.type() == TokenType.TILDE || operator.type() == TokenType.BANG;
+                    states[waiting] = unary ? UNARY : NEEDS_LEFT;
+                    operators[waiting++] = operator;
+                    continue;
+                }
+            }
+
+            while (true) {
+                if (waiting == 0) {
+                    return expr;
+                }
+                int top = waiting - 1;
+                if (states[top] == NEEDS_LEFT) {
+                    lefts[top] = expr;
+                    states[top] = NEEDS_RIGHT;
+                    break;
+                }
+                waiting--;
+                expr = states[top] == UNARY ? new Expr.Arithmetic(operators[top], expr, null)
+                        : new Expr.Arithmetic(operators[top], lefts[top], expr);
+            }
         }
     }
-}
\ No newline at end of file
+}
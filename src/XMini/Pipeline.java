@@ -0,0 +1,165 @@
+package XMini;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/*
+ * Runs lexing, parsing and execution on three threads connected by bounded queues, so that lexing and parsing overlap
+ * with execution and memory stays bounded however large the input is.
+ *
+ * Tokens and statements are handed over in batches to keep the cost of the queues low. The parser hands over its
+ * partial batch whenever it would otherwise wait for tokens, so statements are never held back by batching.
+ * An exception on the lexer or parser thread is passed down the queues and rethrown on the executing thread.
+ */
+class Pipeline {
+    private static final int BATCH_SIZE = 1024;
+    private static final int QUEUE_CAPACITY = 16;
+    private static final Expr.Statement[] END = new Expr.Statement[0];
+
+    private final Lexer lexer;
+    // batches of tokens ending with EOF, or a Throwable
+    private final BlockingQueue<Object> tokens = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    // batches of statements ending with END, or a Throwable
+    private final BlockingQueue<Object> statements = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    // state of the parser thread
+    private Token[] tokenBatch = new Token[0];
+    private int tokenPos = 0;
+    private Expr.Statement[] statementBatch = new Expr.Statement[BATCH_SIZE];
+    private int statementCount = 0;
+
+    Pipeline(Lexer lexer) {
+        this.lexer = lexer;
+    }
+
+    void run(Interpreter interpreter) {
+        run(interpreter::interpret);
+    }
+
+    // passes each statement to execute, in order, on the calling thread
+    void run(Consumer<Expr.Statement> execute) {
+        Thread lexerThread = start("xmini-lexer", this::lex);
+        Thread parserThread = start("xmini-parser", this::parse);
+        try {
+            while (true) {
+                Expr.Statement[] batch = (Expr.Statement[]) unwrap(statements.take());
+                if (batch == END) {
+                    return;
+                }
+                for (Expr.Statement statement : batch) {
+                    execute.accept(statement);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lexerThread.interrupt();
+            parserThread.interrupt();
+        }
+    }
+
+    private void lex() {
+        Token[] batch = new Token[BATCH_SIZE];
+        int count = 0;
+        try {
+            while (true) {
+                Token token;
+                try {
+                    token = lexer.nextToken();
+                } catch (RuntimeException | Error e) {
+                    // the tokens before the error are still parsed and run
+                    tokens.put(Arrays.copyOf(batch, count));
+                    tokens.put(e);
+                    return;
+                }
+                batch[count++] = token;
+                if (token.type() == TokenType.EOF) {
+                    tokens.put(Arrays.copyOf(batch, count));
+                    return;
+                } else if (count == BATCH_SIZE) {
+                    tokens.put(batch);
+                    batch = new Token[BATCH_SIZE];
+                    count = 0;
+                }
+            }
+        } catch (InterruptedException e) {
+            // the pipeline was stopped
+        }
+    }
+
+    private void parse() {
+        try {
+            Parser parser = new Parser(this::nextToken);
+            Expr.Statement statement;
+            while ((statement = parser.next()) != null) {
+                statementBatch[statementCount++] = statement;
+                if (statementCount == BATCH_SIZE) {
+                    flushStatements();
+                }
+            }
+            flushStatements();
+            statements.put(END);
+        } catch (Stopped e) {
+            // the pipeline was stopped
+        } catch (RuntimeException | Error e) {
+            try {
+                flushStatements();
+                statements.put(e);
+            } catch (InterruptedException ignored) {
+                // the pipeline was stopped
+            }
+        } catch (InterruptedException e) {
+            // the pipeline was stopped
+        }
+    }
+
+    private Token nextToken() {
+        try {
+            while (tokenPos == tokenBatch.length) {
+                Object batch = tokens.poll();
+                if (batch == null) {
+                    // about to wait for the lexer, let the statements parsed so far run in the meantime
+                    flushStatements();
+                    batch = tokens.take();
+                }
+                tokenBatch = (Token[]) unwrap(batch);
+                tokenPos = 0;
+            }
+            return tokenBatch[tokenPos++];
+        } catch (InterruptedException e) {
+            throw new Stopped();
+        }
+    }
+
+    private void flushStatements() throws InterruptedException {
+        if (statementCount > 0) {
+            statements.put(Arrays.copyOf(statementBatch, statementCount));
+            statementCount = 0;
+        }
+    }
+
+    private static Object unwrap(Object item) {
+        if (item instanceof RuntimeException e) {
+            throw e;
+        } else if (item instanceof Error e) {
+            throw e;
+        }
+        return item;
+    }
+
+    private static Thread start(String name, Runnable stage) {
+        Thread thread = new Thread(stage, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // thrown on the parser thread when the pipeline is stopped while it waits for tokens
+    private static class Stopped extends RuntimeException {
+        Stopped() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package XMini;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/*
+ * Collects where an Interpreter spends its time: the count and cumulative time of the statements of each kind, the
+ * slowest statements, how often each operator is applied, and how often each variable is read and written.
+ *
+ * Profiling is off unless the Interpreter is given a Profiler; the hot paths then only test a final field for null.
+ * While profiling, every statement is also a JFR event (xmini.Statement) and the totals are emitted as JFR events
+ * when the report is printed, so a recording started with -XX:StartFlightRecording shows them next to the JVM's own
+ * events. The events cost nothing while no recording has them enabled.
+ *
+ * A Profiler is not thread-safe: it belongs to a single Interpreter.
+ */
+class Profiler {
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final int SLOWEST = 10;
+    private static final int VARIABLES = 20;
+
+    @Name("xmini.Statement")
+    @Label("XMini Statement")
+    @Category("XMini")
+    @Description("A statement run by the interpreter")
+    static class StatementEvent extends Event {
+        @Label("Number")
+        @Description("Position of the statement in the program, from 1")
+        long number;
+
+        @Label("Keyword")
+        String keyword;
+
+        @Label("Variable")
+        String variable;
+    }
+
+    @Name("xmini.Operator")
+    @Label("XMini Operator")
+    @Category("XMini")
+    @Description("Number of times the interpreter applied an operator")
+    static class OperatorEvent extends Event {
+        @Label("Operator")
+        String operator;
+
+        @Label("Count")
+        long count;
+    }
+
+    @Name("xmini.Profile")
+    @Label("XMini Profile")
+    @Category("XMini")
+    @Description("Totals of a profiled run")
+    static class ProfileEvent extends Event {
+        @Label("Statements")
+        long statements;
+
+        @Label("Statement Time")
+        @Timespan
+        long time;
+
+        @Label("Operators")
+        long operators;
+
+        @Label("Variable Reads")
+        long reads;
+
+        @Label("Variable Writes")
+        long writes;
+    }
+
+    private record Slow(long number, Expr.Statement statement, long nanos) {
+    }
+
+    private final long[] statementCounts = new long[TYPES.length];  // by keyword
+    private final long[] statementNanos = new long[TYPES.length];
+    private final PriorityQueue<Slow> slowest = new PriorityQueue<>((a, b) -> Long.compare(a.nanos(), b.nanos()));
+    private long statements = 0;
+
+    private final long[] operators = new long[TYPES.length];
+    private long[] reads = new long[16];  // by slot
+    private long[] writes = new long[16];
+
+    // counts of the int-only evaluation in progress, which only count once it succeeds, see Interpreter.evaluateInt
+    private final long[] pendingOperators = new long[TYPES.length];
+    private long[] pendingReads = new long[16];
+    private boolean pending = false;
+
+    private Resolver resolver;  // for the names of the slots
+
+    void variables(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    void statement(Expr.Statement statement, long nanos, StatementEvent event) {
+        statements++;
+        int keyword = statement.keyword.type().ordinal();
+        statementCounts[keyword]++;
+        statementNanos[keyword] += nanos;
+        if (slowest.size() < SLOWEST || slowest.peek().nanos() < nanos) {
+            slowest.add(new Slow(statements, statement, nanos));
+            if (slowest.size() > SLOWEST) {
+                slowest.poll();
+            }
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.number = statements;
+            event.keyword = statement.keyword.text();
+            event.variable = statement.var_name == null ? null : statement.var_name.text();
+            event.commit();
+        }
+    }
+
+    void operator(TokenType type) {
+        operators[type.ordinal()]++;
+    }
+
+    void read(int slot) {
+        reads = count(reads, slot);
+    }
+
+    void write(int slot) {
+        writes = count(writes, slot);
+    }
+
+    // starts counting on the side, for an evaluation that may be abandoned and redone
+    void begin() {
+        if (pending) {
+            Arrays.fill(pendingOperators, 0);
+            Arrays.fill(pendingReads, 0);
+        }
+        pending = true;
+    }
+
+    void pendingOperator(TokenType type) {
+        pendingOperators[type.ordinal()]++;
+    }
+
+    void pendingRead(int slot) {
+        pendingReads = count(pendingReads, slot);
+    }
+
+    // adds the counts since begin()
+    void commit() {
+        for (int i = 0; i < operators.length; i++) {
+            operators[i] += pendingOperators[i];
+        }
+        if (reads.length < pendingReads.length) {
+            reads = Arrays.copyOf(reads, pendingReads.length);
+        }
+        for (int i = 0; i < pendingReads.length; i++) {
+            reads[i] += pendingReads[i];
+        }
+        Arrays.fill(pendingOperators, 0);
+        Arrays.fill(pendingReads, 0);
+        pending = false;
+    }
+
+    private static long[] count(long[] counts, int slot) {
+        if (slot >= counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(counts.length * 2, slot + 1));
+        }
+        counts[slot]++;
+        return counts;
+    }
+
+    // prints the summary and emits the totals as JFR events
+    void report(PrintStream out) {
+        long totalNanos = Arrays.stream(statementNanos).sum();
+        long totalOperators = Arrays.stream(operators).sum();
+        long totalReads = Arrays.stream(reads).sum();
+        long totalWrites = Arrays.stream(writes).sum();
+
+        out.printf("Profile: %d statements in %.3f ms, %d operators, %d variable reads, %d writes%n", statements,
+                totalNanos / 1e6, totalOperators, totalReads, totalWrites);
+        out.printf("  %-12s %12s %12s%n", "statement", "count", "time (ms)");
+        for (TokenType type : TYPES) {
+            if (statementCounts[type.ordinal()] > 0) {
+                out.printf("  %-12s %12d %12.3f%n", Lexer.fixed(type).text(), statementCounts[type.ordinal()],
+                        statementNanos[type.ordinal()] / 1e6);
+            }
+        }
+        if (!slowest.isEmpty()) {
+            out.println("  slowest statements");
+            Slow[] slow = slowest.toArray(new Slow[0]);
+            Arrays.sort(slow, (a, b) -> Long.compare(b.nanos(), a.nanos()));
+            for (Slow s : slow) {
+                Expr.Statement statement = s.statement();
+                String name = statement.var_name == null ? "" : " " + statement.var_name.text();
+                out.printf("    #%-10d %-16s %12.3f%n", s.number(), statement.keyword.text() + name, s.nanos() / 1e6);
+            }
+        }
+        if (totalOperators > 0) {
+            out.printf("  %-12s %12s%n", "operator", "count");
+            for (TokenType type : TYPES) {
+                if (operators[type.ordinal()] > 0) {
+                    out.printf("  %-12s %12d%n", Lexer.fixed(type).text(), operators[type.ordinal()]);
+                }
+            }
+        }
+        reportVariables(out);
+
+        ProfileEvent profile = new ProfileEvent();
+        if (profile.shouldCommit()) {
+            profile.statements = statements;
+            profile.time = totalNanos;
+            profile.operators = totalOperators;
+            profile.reads = totalReads;
+            profile.writes = totalWrites;
+            profile.commit();
+        }
+        for (TokenType type : TYPES) {
+            OperatorEvent event = new OperatorEvent();
+            if (operators[type.ordinal()] > 0 && event.shouldCommit()) {
+                event.operator = Lexer.fixed(type).text();
+                event.count = operators[type.ordinal()];
+                event.commit();
+            }
+        }
+    }
+
+    // the most used variables
+    private void reportVariables(PrintStream out) {
+        int slots = Math.max(reads.length, writes.length);
+        Integer[] order = new Integer[slots];
+        for (int i = 0; i < slots; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(uses(b), uses(a)));
+        if (slots == 0 || uses(order[0]) == 0) {
+            return;
+        }
+        out.printf("  %-12s %12s %12s%n", "variable", "reads", "writes");
+        for (int i = 0; i < Math.min(slots, VARIABLES) && uses(order[i]) > 0; i++) {
+            int slot = order[i];
+            String name = resolver != null && slot < resolver.size() ? resolver.name(slot) : "#" + slot;
+            out.printf("  %-12s %12d %12d%n", name, slot < reads.length ? reads[slot] : 0,
+                    slot < writes.length ? writes[slot] : 0);
+        }
+    }
+
+    private long uses(int slot) {
+        return (slot < reads.length ? reads[slot] : 0) + (slot < writes.length ? writes[slot] : 0);
+    }
+}
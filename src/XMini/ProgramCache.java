@@ -0,0 +1,278 @@
+package XMini;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/*
+ * Caches parsed programs on disk, so that running an unchanged file again skips the lexer.
+ *
+ * Entries are keyed by a SHA-256 hash of the source bytes, the charset they are decoded with and the format version.
+ * An entry holds the statements as the stream of their tokens in prefix order: distinct names, numbers and strings
+ * are stored once in a symbol table, and every other token is a single byte. The Parser rebuilds the statements from
+ * that stream, so a cached program always has the same shape as a freshly parsed one, and a streamed run can start
+ * executing it before the rest is decoded.
+ *
+ * Layout of an entry:
+ *    int magic, int version, 32 bytes source hash,
+ *    varint symbol count, symbols (byte type, varint length, chars as varints),
+ *    varint token count, tokens (byte type, or SYMBOL followed by a varint index into the symbols),
+ *    int CRC32 of everything before it
+ * An entry that does not check out (truncated, corrupt, another version or another source) is ignored and rewritten.
+ * Entries are written to a temporary file and moved into place, so concurrent runs never see a partial entry.
+ */
+class ProgramCache {
+    private static final int MAGIC = 0x584d4341;  // "XMCA"
+    // bump whenever the lexer, the parser or the format of the entries change
+    private static final int VERSION = 1;
+    private static final int SYMBOL = 0xff;
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final Path directory;
+
+    ProgramCache(Path directory) {
+        this.directory = directory;
+    }
+
+    static Path defaultDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".cache", "xmini");
+    }
+
+    // the key of the program in the given file, as read with the given charset
+    String key(Path source, Charset charset) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(ByteBuffer.allocate(4).putInt(0, VERSION));
+        digest.update(charset.name().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(source)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // returns a parser over the cached program, or null if there is no valid entry for the key
+    Parser load(String key) {
+        Path file = directory.resolve(key + ".xmc");
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println("Warning: cannot read cache entry " + file + ": " + e.getMessage());
+            return null;
+        }
+        try {
+            return decode(bytes, HexFormat.of().parseHex(key));
+        } catch (RuntimeException e) {
+            System.err.println("Warning: ignoring invalid cache entry " + file);
+            return null;
+        }
+    }
+
+    void store(String key, Iterable<Expr.Statement> statements) {
+        Entry entry = new Entry();
+        statements.forEach(entry::add);
+        store(key, entry);
+    }
+
+    void store(String key, Entry entry) {
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, key, ".tmp");
+            try {
+                Files.write(temporary, entry.encode(HexFormat.of().parseHex(key)));
+                Files.move(temporary, directory.resolve(key + ".xmc"), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: cannot write cache entry for " + key + ": " + e.getMessage());
+        }
+    }
+
+    // A program being written to the cache: the tokens of its statements in prefix order, and the symbols they use.
+    // Statements can be added as soon as they are parsed, so a streamed run does not have to keep them.
+    static class Entry {
+        private final ByteArrayOutputStream tokens = new ByteArrayOutputStream();
+        private final List<Token> symbols = new ArrayList<>();
+        private final Map<Token, Integer> symbolIndex = new HashMap<>();
+        private int count = 0;
+        private Expr[] stack = new Expr[16];
+
+        void add(Expr.Statement statement) {
+            write(statement.keyword);
+            if (statement.var_name != null) {
+                write(statement.var_name);
+            }
+            write(statement.expr);
+        }
+
+        private byte[] encode(byte[] hash) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(tokens.size() + 1024);
+            writeInt(out, MAGIC);
+            writeInt(out, VERSION);
+            out.write(hash, 0, hash.length);
+            writeVarint(out, symbols.size());
+            for (Token symbol : symbols) {
+                out.write(symbol.type().ordinal());
+                String text = symbol.text();
+                writeVarint(out, text.length());
+                for (int i = 0; i < text.length(); i++) {
+                    writeVarint(out, text.charAt(i));
+                }
+            }
+            writeVarint(out, count);
+            out.writeBytes(tokens.toByteArray());
+            CRC32 crc = new CRC32();
+            crc.update(out.toByteArray());
+            writeInt(out, (int) crc.getValue());
+            return out.toByteArray();
+        }
+
+        private void write(Token token) {
+            count++;
+            Token fixed = Lexer.fixed(token.type());
+            if (fixed != null && fixed.text().equals(token.text())) {
+                tokens.write(token.type().ordinal());
+                return;
+            }
+            Integer index = symbolIndex.get(token);
+            if (index == null) {
+                index = symbols.size();
+                symbols.add(token);
+                symbolIndex.put(token, index);
+            }
+            tokens.write(SYMBOL);
+            writeVarint(tokens, index);
+        }
+
+        // a preorder walk with an explicit stack, so it can be nested arbitrarily deep
+        private void write(Expr expr) {
+            int size = 0;
+            Expr node = expr;
+            while (true) {
+                if (node instanceof Expr.Arithmetic arithmetic) {
+                    write(arithmetic.operator);
+                    if (arithmetic.right != null) {
+                        if (size == stack.length) {
+                            stack = Arrays.copyOf(stack, size * 2);
+                        }
+                        stack[size++] = arithmetic.right;
+                    }
+                    node = arithmetic.left;
+                    continue;
+                } else if (node instanceof Expr.Literal literal) {
+                    write(literal.value);
+                } else if (node instanceof Expr.Variable variable) {
+                    write(variable.var_name);
+                } else {
+                    throw new IllegalArgumentException("Unknown expression " + node);
+                }
+                if (size == 0) {
+                    return;
+                }
+                node = stack[--size];
+                stack[size] = null;
+            }
+        }
+    }
+
+    // checks the whole entry up front, then returns a parser that decodes its tokens as it goes
+    private static Parser decode(byte[] bytes, byte[] hash) {
+        if (bytes.length < 4) {
+            throw new IllegalStateException("Truncated cache entry");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (in.getInt(bytes.length - 4) != (int) crc.getValue()) {
+            throw new IllegalStateException("Checksum mismatch");
+        }
+        in.limit(bytes.length - 4);
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IllegalStateException("Not a cache entry of this version");
+        }
+        byte[] storedHash = new byte[hash.length];
+        in.get(storedHash);
+        if (!Arrays.equals(storedHash, hash)) {
+            throw new IllegalStateException("Cache entry of another program");
+        }
+
+        Token[] symbols = new Token[readVarint(in)];
+        for (int i = 0; i < symbols.length; i++) {
+            TokenType type = TYPES[in.get()];
+            char[] text = new char[readVarint(in)];
+            for (int j = 0; j < text.length; j++) {
+                text[j] = (char) readVarint(in);
+            }
+            symbols[i] = new Token(type, new String(text));
+        }
+        int[] remaining = {readVarint(in)};
+        return new Parser(() -> {
+            if (remaining[0] == 0) {
+                if (in.hasRemaining()) {
+                    throw new IllegalStateException("Trailing data in cache entry");
+                }
+                return Lexer.fixed(TokenType.EOF);
+            }
+            remaining[0]--;
+            int type = in.get() & 0xff;
+            return type == SYMBOL ? symbols[readVarint(in)] : Lexer.fixed(TYPES[type]);
+        });
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+}
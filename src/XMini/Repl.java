@@ -0,0 +1,187 @@
+package XMini;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The console: reads commands from the standard input and runs them on one Interpreter, which keeps its variables and
+ * their slots from one command to the next.
+ *
+ * Input is read from the channel of the standard input in blocks of up to 64 KB, and everything that has arrived,
+ * like a pasted block or piped input, is run as one batch: its lines are parsed and run back to back, the output is
+ * flushed once at the end, and then the prompt is printed, only when the input is a terminal. As before, each line is
+ * parsed on its own, and a line with an error is reported and skipped while the rest of the batch goes on. The
+ * statements of a line are cached by its text, so a command that comes again is not lexed and parsed again. The
+ * `quit` command, or the end of the input, ends the session.
+ *
+ * With --latency, each batch is reported on stderr, and a summary with the run time and latency percentiles of the
+ * commands is printed at the end. A command's latency runs from the read that brought it to the flush of its output.
+ */
+class Repl {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int CACHE_SIZE = 4096;  // distinct lines whose statements are kept
+    private static final int BATCH_LINES = 1024;  // after which no more is read into a batch, so output is not held back
+
+    private final Interpreter interpreter;
+    private final OutputSink out;
+    private final boolean cache;
+    private final boolean latency;
+    private final FileInputStream input = new FileInputStream(FileDescriptor.in);
+    private final ReadableByteChannel channel = input.getChannel();
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final StringBuilder partial = new StringBuilder();  // the start of a line whose end has not arrived yet
+    private final Map<String, List<Expr.Statement>> statements = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<Expr.Statement>> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private int commands = 0;
+    private int batches = 0;
+    private long[] runTimes = new long[1024];
+    private long[] latencies = new long[1024];
+
+    // The cache is off while memoizing, since Subexpressions numbers the nodes of each statement it is given
+    Repl(Interpreter interpreter, OutputSink out, boolean cache, boolean latency) {
+        this.interpreter = interpreter;
+        this.out = out;
+        this.cache = cache;
+        this.latency = latency;
+    }
+
+    void run() throws IOException {
+        boolean interactive = System.console() != null;
+        long begin = System.nanoTime();
+        boolean done = false;
+        while (!done) {
+            if (interactive) {
+                System.out.print(">>> ");
+                System.out.flush();
+            }
+            List<String> lines = read();
+            if (lines == null) {
+                break;
+            }
+            long arrived = System.nanoTime();
+            int first = commands;
+            for (String line : lines) {
+                if (line.equals("quit")) {
+                    done = true;
+                    break;
+                }
+                long start = System.nanoTime();
+                execute(line);
+                record(System.nanoTime() - start);
+            }
+            out.flush();
+            long flushed = System.nanoTime();
+            for (int i = first; i < commands; i++) {
+                latencies[i] = flushed - arrived;
+            }
+            batches++;
+            if (latency && commands > first) {
+                System.err.printf("%d commands in %.3f ms%n", commands - first, (flushed - arrived) / 1e6);
+            }
+        }
+        out.flush();
+        if (latency) {
+            summary(System.nanoTime() - begin);
+        }
+    }
+
+    // Reads what is available, at least one complete line and at least BATCH_LINES if there are that many. Returns the
+    // complete lines, or null at the end of the input
+    private List<String> read() throws IOException {
+        List<String> lines = new ArrayList<>();
+        do {
+            if (channel.read(bytes) < 0) {
+                if (partial.length() > 0) {
+                    lines.add(partial.toString());
+                    partial.setLength(0);
+                }
+                return lines.isEmpty() ? null : lines;
+            }
+            decode(lines);
+        } while (lines.isEmpty() || (lines.size() < BATCH_LINES && input.available() > 0));
+        return lines;
+    }
+
+    // Decodes the bytes read into lines. A character cut by the end of the read stays in the buffer for the next one
+    private void decode(List<String> lines) {
+        bytes.flip();
+        CoderResult result;
+        do {
+            chars.clear();
+            result = decoder.decode(bytes, chars, false);
+            chars.flip();
+            int start = 0;
+            for (int i = 0; i < chars.limit(); i++) {
+                if (chars.get(i) == '\n') {
+                    partial.append(chars, start, i);
+                    int length = partial.length();
+                    if (length > 0 && partial.charAt(length - 1) == '\r') {
+                        partial.setLength(length - 1);
+                    }
+                    lines.add(partial.toString());
+                    partial.setLength(0);
+                    start = i + 1;
+                }
+            }
+            partial.append(chars, start, chars.limit());
+        } while (result.isOverflow());
+        bytes.compact();
+    }
+
+    private void execute(String line) {
+        List<Expr.Statement> parsed = cache ? statements.get(line) : null;
+        try {
+            if (parsed == null) {
+                parsed = new Parser(new Lexer(line)).parse();
+                if (cache) {
+                    statements.put(line, parsed);
+                }
+            }
+            for (Expr.Statement statement : parsed) {
+                interpreter.interpret(statement);
+            }
+        } catch (RuntimeException e) {
+            out.flush();
+            System.err.println(e instanceof Lexer.LexerException ? e.getMessage() : "Error: " + e.getMessage());
+        }
+    }
+
+    private void record(long nanos) {
+        if (commands == runTimes.length) {
+            runTimes = Arrays.copyOf(runTimes, commands * 2);
+            latencies = Arrays.copyOf(latencies, commands * 2);
+        }
+        runTimes[commands++] = nanos;
+    }
+
+    private void summary(long elapsedNanos) {
+        System.err.printf("Commands: %d in %d batches in %.3f s, %.1f commands/s%n", commands, batches,
+                elapsedNanos / 1e9, commands / (elapsedNanos / 1e9));
+        if (commands > 0) {
+            System.err.println("Run time (ms): " + Batch.percentiles(runTimes, commands));
+            System.err.println("Latency (ms):  " + Batch.percentiles(latencies, commands));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package XMini;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/*
+ * Binds every variable name to a numeric slot, so that the interpreter can keep its variables in a flat array.
+ *
+ * Since XMini has no control flow, whether a variable is defined at a given point is known statically. References to
+ * variables that are not defined yet (and `set` statements on them) are bound to UNDEFINED, and redefinitions with
+ * `var` are reported here instead of at runtime.
+ *
+ * A Resolver keeps its bindings between calls, so a REPL can resolve one line at a time. It can also continue from the
+ * bindings of a Snapshot, which it looks up without copying them.
+ */
+public class Resolver {
+    static final int UNRESOLVED = -2;
+    static final int UNDEFINED = -1;
+
+    private static final Logger LOGGER = Logger.getLogger(Interpreter.class.getName());
+    private final Map<String, Integer> baseSlots;  // the bindings of the snapshot this resolver continues from
+    private final String[] baseNames;
+    private final Map<String, Integer> slots = new HashMap<>();  // names bound since
+    private final List<String> names = new ArrayList<>();
+    private final BitSet defined;
+    private Expr[] stack = new Expr[16];  // right operands still to visit, see resolve(Expr)
+    private final Consumer<String> warnings;
+
+    Resolver() {
+        this(LOGGER::warning);
+    }
+
+    Resolver(Consumer<String> warnings) {
+        this(warnings, null);
+    }
+
+    Resolver(Snapshot snapshot) {
+        this(LOGGER::warning, snapshot);
+    }
+
+    // continues from the bindings of the snapshot, if it is not null
+    Resolver(Consumer<String> warnings, Snapshot snapshot) {
+        this.warnings = warnings;
+        this.baseSlots = snapshot == null ? Map.of() : snapshot.slots;
+        this.baseNames = snapshot == null ? new String[0] : snapshot.names;
+        this.defined = snapshot == null ? new BitSet() : (BitSet) snapshot.defined.clone();
+    }
+
+    void resolve(List<Expr.Statement> statements) {
+        for (Expr.Statement statement : statements) {
+            resolve(statement);
+        }
+    }
+
+    void resolve(Expr.Statement statement) {
+        switch (statement.keyword.type()) {
+            case TEXT, OUTPUT -> resolve(statement.expr);
+            case VAR -> {
+                String name = statement.var_name.text();
+                int slot = slot(name);
+                if (defined.get(slot)) {
+                    warnings.accept("Variable " + name + " already defined");
+                }
+                resolve(statement.expr);
+                defined.set(slot);
+                statement.slot = slot;
+            }
+            case SET -> {
+                int slot = slot(statement.var_name.text());
+                statement.slot = defined.get(slot) ? slot : UNDEFINED;
+                resolve(statement.expr);
+            }
+            default -> throw new RuntimeException("Unexpected token " + statement.keyword);
+        }
+    }
+
+    // walks the expression with an explicit stack, so it can be nested arbitrarily deep
+    private void resolve(Expr expr) {
+        int size = 0;
+        Expr node = expr;
+        while (true) {
+            if (node instanceof Expr.Arithmetic arithmetic) {
+                if (arithmetic.right != null) {
+                    if (size == stack.length) {
+                        stack = Arrays.copyOf(stack, size * 2);
+                    }
+                    stack[size++] = arithmetic.right;
+                }
+                node = arithmetic.left;
+                continue;
+            } else if (node instanceof Expr.Variable variable) {
+                int slot = lookup(variable.var_name.text());
+                variable.slot = slot >= 0 && defined.get(slot) ? slot : UNDEFINED;
+            }
+            if (size == 0) {
+                return;
+            }
+            node = stack[--size];
+            stack[size] = null;
+        }
+    }
+
+    // the slot bound to the name, or -1
+    private int lookup(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null && baseNames.length > 0) {
+            slot = baseSlots.get(name);
+        }
+        return slot != null ? slot : -1;
+    }
+
+    private int slot(String name) {
+        if (baseNames.length > 0) {
+            Integer slot = baseSlots.get(name);
+            if (slot != null) {
+                return slot;
+            }
+        }
+        return slots.computeIfAbsent(name, n -> {
+            names.add(n);
+            return baseNames.length + names.size() - 1;
+        });
+    }
+
+    // takes back the definition of a var whose statement failed, see Interpreter.interpret(Statement)
+    void undefine(int slot) {
+        defined.clear(slot);
+    }
+
+    // number of slots handed out so far
+    int size() {
+        return baseNames.length + names.size();
+    }
+
+    String name(int slot) {
+        return slot < baseNames.length ? baseNames[slot] : names.get(slot - baseNames.length);
+    }
+
+    // the bindings so far, for a snapshot. They are copied unless no name was bound since the last snapshot
+    Map<String, Integer> slots() {
+        if (slots.isEmpty()) {
+            return baseSlots;
+        }
+        Map<String, Integer> all = new HashMap<>(baseSlots);
+        all.putAll(slots);
+        return all;
+    }
+
+    String[] names() {
+        if (names.isEmpty()) {
+            return baseNames;
+        }
+        String[] all = Arrays.copyOf(baseNames, size());
+        for (int i = 0; i < names.size(); i++) {
+            all[baseNames.length + i] = names.get(i);
+        }
+        return all;
+    }
+
+    BitSet defined() {
+        return (BitSet) defined.clone();
+    }
+}
@@ -0,0 +1,141 @@
+package XMini;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/*
+ * The variables of an Interpreter at one point of a program: the slots bound by its Resolver, which of them are
+ * defined, and their values. A snapshot never changes, so any number of interpreters can start from it: they share
+ * its arrays and copy them on their first write (see Interpreter.snapshot()).
+ *
+ * File format:
+ *    int magic, int version, int slot count,
+ *    per slot: UTF name, byte kind (UNDEFINED, INT or STRING), then an int, or an int length and UTF-8 bytes,
+ *    int CRC32 of everything before it
+ */
+final class Snapshot {
+    private static final int MAGIC = 0x584d534e;  // "XMSN"
+    private static final int VERSION = 1;
+    private static final byte UNDEFINED = 0;
+    private static final byte INT = 1;
+    private static final byte STRING = 2;
+
+    final Map<String, Integer> slots;  // not modified once the snapshot is taken
+    final String[] names;  // by slot
+    final BitSet defined;
+    final Object[] values;  // Interpreter.INT for a slot whose value is in ints
+    final int[] ints;
+
+    Snapshot(Map<String, Integer> slots, String[] names, BitSet defined, Object[] values, int[] ints) {
+        this.slots = slots;
+        this.names = names;
+        this.defined = defined;
+        this.values = values;
+        this.ints = ints;
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    // writes the snapshot to a temporary file first, so that a crash never leaves a partial snapshot behind
+    void write(Path file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(names.length);
+        for (int slot = 0; slot < names.length; slot++) {
+            out.writeUTF(names[slot]);
+            if (!defined.get(slot)) {
+                out.writeByte(UNDEFINED);
+            } else if (values[slot] == Interpreter.INT) {
+                out.writeByte(INT);
+                out.writeInt(ints[slot]);
+            } else {
+                byte[] text = ((String) values[slot]).getBytes(StandardCharsets.UTF_8);
+                out.writeByte(STRING);
+                out.writeInt(text.length);
+                out.write(text);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        // the errors of the file system name the temporary file, so they are reported with the checkpoint file
+        Path directory = file.toAbsolutePath().getParent();
+        if (!Files.isDirectory(directory)) {
+            throw new IOException("Cannot write checkpoint " + file + ": no such directory " + directory);
+        }
+        try {
+            Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temporary, bytes.toByteArray());
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            throw new IOException("Cannot write checkpoint " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    static Snapshot read(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, Math.max(bytes.length - 4, 0));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (bytes.length < 16 || in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not an XMini snapshot of this version");
+        }
+        if (new DataInputStream(new ByteArrayInputStream(bytes, bytes.length - 4, 4)).readInt() != (int) crc.getValue()) {
+            throw new IOException("Corrupt snapshot");
+        }
+
+        int size = in.readInt();
+        if (size < 0 || size > bytes.length) {
+            throw new IOException("Corrupt snapshot");
+        }
+        Map<String, Integer> slots = new HashMap<>(size * 2);
+        String[] names = new String[size];
+        BitSet defined = new BitSet(size);
+        Object[] values = new Object[Math.max(size, 16)];
+        int[] ints = new int[values.length];
+        for (int slot = 0; slot < size; slot++) {
+            names[slot] = in.readUTF();
+            slots.put(names[slot], slot);
+            switch (in.readByte()) {
+                case UNDEFINED -> {
+                }
+                case INT -> {
+                    defined.set(slot);
+                    values[slot] = Interpreter.INT;
+                    ints[slot] = in.readInt();
+                }
+                case STRING -> {
+                    defined.set(slot);
+                    byte[] text = new byte[in.readInt()];
+                    in.readFully(text);
+                    values[slot] = new String(text, StandardCharsets.UTF_8);
+                }
+                default -> throw new IOException("Corrupt snapshot");
+            }
+        }
+        if (in.available() != 4 || slots.size() != size) {
+            throw new IOException("Corrupt snapshot");
+        }
+        return new Snapshot(slots, names, defined, values, ints);
+    }
+}
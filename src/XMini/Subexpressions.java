@@ -0,0 +1,300 @@
+package XMini;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Common subexpression analysis, and the results an Interpreter memoizes with it.
+ *
+ * Every arithmetic subtree of the statements added is numbered by structure: two subtrees are the same when they apply
+ * the same operators to the same constants and the same variable slots. When a subtree is seen again, like `* x x` in
+ * `+ * x x 1` and then `- * x x y`, it gets an id, which is kept in the memo field of the node. The first evaluation
+ * of a node with an id remembers its value together with the versions of the variables it read; the Interpreter bumps
+ * the version of a variable on every write, so the value is reused by the later occurrences until one of its variables
+ * is assigned again.
+ *
+ * Statements are added one at a time, before they run, so this works on a stream of statements and across the lines
+ * of a REPL. At most MAX_CLASSES distinct subtrees are numbered, which bounds the memory used on long unique programs,
+ * and only subtrees of at most MAX_INPUTS variables are memoized, so checking a result costs a few comparisons.
+ * Subtrees with undefined variables or numbers that do not fit in an int always throw and are never memoized, and a
+ * subtree that throws remembers nothing, so runtime errors happen exactly as without memoization.
+ */
+class Subexpressions {
+    private static final int MAX_CLASSES = 1 << 20;
+    private static final int MAX_INPUTS = 8;
+    private static final int[] NO_INPUTS = new int[0];
+
+    // kinds of keys: a variable is keyed by its slot, a constant by its value, and an operator, whose kind is OPERATOR
+    // plus its ordinal, by the numbers of its operands
+    private static final int VARIABLE = 0;
+    private static final int CONSTANT = 1;
+    private static final int STRING = 2;
+    private static final int OPERATOR = 3;
+
+    // per memoized subtree: the slots it reads are inputs[inputStarts[id] .. inputStarts[id + 1]]
+    private int[] inputStarts = new int[65];
+    private int[] inputs = new int[64];
+    private int[] sizes = new int[64];  // number of operators
+    private int[] idClasses = new int[64];  // the number of the subtree
+    private int memoized = 0;
+
+    // the remembered results, with the versions of the inputs they were computed from, parallel to inputs
+    private int[] values = new int[64];
+    private boolean[] filled = new boolean[64];
+    private long[] seen = new long[64];
+
+    // An open addressing table from the keys of subtrees to their numbers, and for each number its inputs (null if
+    // it has too many), its size, and its id: -1 until the subtree is seen, -2 until it is seen again.
+    private long[] keys = new long[1024];
+    private int[] kinds = new int[1024];
+    private int[] numbers = new int[1024];
+    private int classes = 0;
+    private int[][] classInputs = new int[64][];
+    private int[] classSizes = new int[64];
+    private int[] ids = new int[64];
+    private final Map<String, Integer> strings = new HashMap<>();
+    // the numbers of the variables by slot and of the small constants by value, plus 1, to skip the table for leaves
+    private int[] variableClasses = new int[0];
+    private final int[] smallClasses = new int[256];
+
+    private Expr.Arithmetic[] nodes = new Expr.Arithmetic[16];
+    private Expr[] stack = new Expr[16];
+
+    private long occurrences = 0;
+    private long reused = 0;
+    private long saved = 0;
+
+    Subexpressions() {
+        Arrays.fill(numbers, -1);
+    }
+
+    // Numbers the subtrees of a resolved statement. Until a node has an id, its memo field is -2 - its number, or -1
+    // if it is not memoized.
+    void add(Expr.Statement statement) {
+        int size = 0;
+        int count = 0;
+        Expr node = statement.expr;
+        while (true) {
+            if (node instanceof Expr.Arithmetic arithmetic) {
+                if (count == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, count * 2);
+                }
+                nodes[count++] = arithmetic;
+                if (arithmetic.right != null) {
+                    if (size == stack.length) {
+                        stack = Arrays.copyOf(stack, size * 2);
+                    }
+                    stack[size++] = arithmetic.right;
+                }
+                node = arithmetic.left;
+                continue;
+            }
+            if (size == 0) {
+                break;
+            }
+            node = stack[--size];
+            stack[size] = null;
+        }
+        // in reverse preorder, the children of a node are numbered before it
+        for (int i = count - 1; i >= 0; i--) {
+            number(nodes[i]);
+            nodes[i] = null;
+        }
+    }
+
+    private void number(Expr.Arithmetic arithmetic) {
+        int left = classOf(arithmetic.left);
+        int right = arithmetic.right == null ? -2 : classOf(arithmetic.right);
+        int number = left < 0 || right == -1 ? -1 : find(OPERATOR + arithmetic.operator.type().ordinal(), left, right);
+        if (number < 0 || classInputs[number] == null) {
+            arithmetic.memo = -1;
+        } else if (ids[number] == -1) {
+            ids[number] = -2;
+            classSizes[number] = 1 + classSizes[left] + (right < 0 ? 0 : classSizes[right]);
+            arithmetic.memo = -2 - number;
+        } else {
+            arithmetic.memo = ids[number] >= 0 ? ids[number] : add(number);
+            occurrences++;
+        }
+    }
+
+    // the number of a leaf or of an already numbered subtree, -1 if it is not memoized
+    private int classOf(Expr expr) {
+        if (expr instanceof Expr.Arithmetic arithmetic) {
+            int memo = arithmetic.memo;
+            return memo >= 0 ? idClasses[memo] : memo == -1 ? -1 : -2 - memo;
+        } else if (expr instanceof Expr.Variable variable) {
+            int slot = variable.slot;
+            if (slot < 0) {
+                return -1;
+            } else if (slot >= variableClasses.length) {
+                variableClasses = Arrays.copyOf(variableClasses, Math.max(variableClasses.length * 2, slot + 16));
+            }
+            if (variableClasses[slot] == 0) {
+                variableClasses[slot] = find(VARIABLE, slot, 0) + 1;
+            }
+            return variableClasses[slot] - 1;
+        }
+        Object constant = ((Expr.Literal) expr).constant;
+        if (constant instanceof Integer value) {
+            if (value < 0 || value >= smallClasses.length) {
+                return find(CONSTANT, value, 0);
+            }
+            if (smallClasses[value] == 0) {
+                smallClasses[value] = find(CONSTANT, value, 0) + 1;
+            }
+            return smallClasses[value] - 1;
+        } else if (constant == null || (classes == MAX_CLASSES && !strings.containsKey(constant))) {
+            return -1;
+        }
+        return find(STRING, strings.computeIfAbsent((String) constant, text -> strings.size()), 0);
+    }
+
+    // the number of the subtree with the given key, numbering it if it is new, -1 if there is no room for it
+    private int find(int kind, int a, int b) {
+        long key = ((long) a << 32) | (b & 0xffffffffL);
+        int mask = keys.length - 1;
+        int i = hash(key, kind) & mask;
+        while (numbers[i] >= 0) {
+            if (keys[i] == key && kinds[i] == kind) {
+                return numbers[i];
+            }
+            i = (i + 1) & mask;
+        }
+        if (classes == MAX_CLASSES) {
+            return -1;
+        }
+        if (classes == classInputs.length) {
+            classInputs = Arrays.copyOf(classInputs, classes * 2);
+            classSizes = Arrays.copyOf(classSizes, classes * 2);
+            ids = Arrays.copyOf(ids, classes * 2);
+        }
+        classInputs[classes] = switch (kind) {
+            case VARIABLE -> new int[] {a};
+            case CONSTANT, STRING -> NO_INPUTS;
+            default -> b < 0 ? classInputs[a] : merge(classInputs[a], classInputs[b]);
+        };
+        ids[classes] = -1;
+        keys[i] = key;
+        kinds[i] = kind;
+        numbers[i] = classes;
+        if (2 * ++classes > keys.length) {
+            rehash();
+        }
+        return classes - 1;
+    }
+
+    private static int hash(long key, int kind) {
+        return Long.hashCode((key + kind) * 0x9e3779b97f4a7c15L);
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldKinds = kinds;
+        int[] oldNumbers = numbers;
+        keys = new long[oldKeys.length * 2];
+        kinds = new int[keys.length];
+        numbers = new int[keys.length];
+        Arrays.fill(numbers, -1);
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldNumbers[j] >= 0) {
+                int i = hash(oldKeys[j], oldKinds[j]) & mask;
+                while (numbers[i] >= 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                kinds[i] = oldKinds[j];
+                numbers[i] = oldNumbers[j];
+            }
+        }
+    }
+
+    // the union of two sorted sets of slots, or null if either is null or it has more than MAX_INPUTS slots
+    private static int[] merge(int[] a, int[] b) {
+        if (a == null || b == null) {
+            return null;
+        } else if (a == b || b.length == 0) {
+            return a;
+        } else if (a.length == 0) {
+            return b;
+        }
+        int[] merged = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length || j < b.length) {
+            int slot = j == b.length || (i < a.length && a[i] < b[j]) ? a[i++] : b[j++];
+            if (size == 0 || merged[size - 1] != slot) {
+                merged[size++] = slot;
+            }
+        }
+        return size > MAX_INPUTS ? null : size == merged.length ? merged : Arrays.copyOf(merged, size);
+    }
+
+    // gives a subtree seen a second time an id
+    private int add(int number) {
+        int id = memoized++;
+        int[] slots = classInputs[number];
+        if (memoized == sizes.length) {
+            sizes = Arrays.copyOf(sizes, memoized * 2);
+            idClasses = Arrays.copyOf(idClasses, memoized * 2);
+            inputStarts = Arrays.copyOf(inputStarts, memoized * 2 + 1);
+            values = Arrays.copyOf(values, memoized * 2);
+            filled = Arrays.copyOf(filled, memoized * 2);
+        }
+        int start = inputStarts[id];
+        if (start + slots.length > inputs.length) {
+            inputs = Arrays.copyOf(inputs, Math.max(inputs.length * 2, start + slots.length));
+            seen = Arrays.copyOf(seen, inputs.length);
+        }
+        System.arraycopy(slots, 0, inputs, start, slots.length);
+        inputStarts[id + 1] = start + slots.length;
+        sizes[id] = classSizes[number];
+        idClasses[id] = number;
+        ids[number] = id;
+        occurrences++;  // the first occurrence
+        return id;
+    }
+
+    // whether the subtree has a value computed from the current versions of its variables
+    boolean valid(int id, long[] versions) {
+        if (!filled[id]) {
+            return false;
+        }
+        for (int k = inputStarts[id], end = inputStarts[id + 1]; k < end; k++) {
+            if (seen[k] != versions[inputs[k]]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int value(int id) {
+        return values[id];
+    }
+
+    void remember(int id, int value, long[] versions) {
+        values[id] = value;
+        filled[id] = true;
+        for (int k = inputStarts[id], end = inputStarts[id + 1]; k < end; k++) {
+            seen[k] = versions[inputs[k]];
+        }
+    }
+
+    // counts results reused instead of evaluating the given number of operators
+    void reused(int results, long operators) {
+        reused += results;
+        saved += operators;
+    }
+
+    int size(int id) {
+        return sizes[id];
+    }
+
+    String report() {
+        return "Common subexpressions: " + memoized + " repeated subtrees in " + occurrences + " places, " + reused
+                + " results reused, " + saved + " operator evaluations saved";
+    }
+}
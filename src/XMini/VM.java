@@ -0,0 +1,372 @@
+package XMini;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/*
+ * A virtual machine that runs a program lowered to a dense int[] instruction stream.
+ *
+ * Every value is an int: string values can only come from string literals, so a string is represented by the index of
+ * its (deduplicated) constant, and two strings are equal exactly when their indices are. The lowering pass tracks the
+ * static type of every variable, like the Compiler, so each instruction knows the types of its operands.
+ *
+ * Instruction format: an opcode followed by at most one operand (an int, a constant index or a variable slot).
+ */
+public class VM {
+    static final int PUSH = 0;         // PUSH value
+    static final int CONST = 1;        // CONST constant
+    static final int LOAD = 2;         // LOAD slot
+    static final int STORE = 3;        // STORE slot
+    static final int POP = 4;
+    static final int ADD = 5;
+    static final int SUB = 6;
+    static final int MUL = 7;
+    static final int DIV = 8;
+    static final int MOD = 9;
+    static final int NEG = 10;
+    static final int NOT = 11;
+    static final int AND = 12;
+    static final int OR = 13;
+    static final int EQ = 14;
+    static final int NEQ = 15;
+    static final int LT = 16;
+    static final int GT = 17;
+    static final int LTE = 18;
+    static final int GTE = 19;
+    static final int AND_STRING = 20;  // && int string
+    static final int OR_STRING = 21;   // || int string
+    static final int PRINT_INT = 22;
+    static final int PRINT_STRING = 23;
+    static final int WARN = 24;        // WARN constant: variable redefined
+    static final int THROW = 25;       // THROW constant: runtime error with the given message
+    static final int CAST_FAIL = 26;   // the string on top of the stack is used as an int
+    static final int PARSE = 27;       // PARSE constant: a number literal that does not fit in an int
+    static final int HALT = 28;
+
+    private static final Logger LOGGER = Logger.getLogger(Interpreter.class.getName());
+    private static final int MAGIC = 0x584d5649;  // "XMVI"
+
+    record Program(int[] code, String[] constants, int slots, int maxStack) {
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(slots);
+            out.writeInt(maxStack);
+            out.writeInt(constants.length);
+            for (String constant : constants) {
+                out.writeUTF(constant);
+            }
+            out.writeInt(code.length);
+            for (int instruction : code) {
+                out.writeInt(instruction);
+            }
+        }
+
+        static Program read(DataInputStream in) throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an XMini program");
+            }
+            int slots = in.readInt();
+            int maxStack = in.readInt();
+            String[] constants = new String[in.readInt()];
+            for (int i = 0; i < constants.length; i++) {
+                constants[i] = in.readUTF();
+            }
+            int[] code = new int[in.readInt()];
+            for (int i = 0; i < code.length; i++) {
+                code[i] = in.readInt();
+            }
+            return new Program(code, constants, slots, maxStack);
+        }
+    }
+
+    private final OutputSink out;
+
+    public VM() {
+        this(new OutputSink(System.out, OutputSink.FlushPolicy.LINE));
+    }
+
+    VM(OutputSink out) {
+        this.out = out;
+    }
+
+    public void run(Program program) {
+        final int[] code = program.code();
+        final String[] constants = program.constants();
+        final int[] slots = new int[program.slots()];
+        final int[] stack = new int[program.maxStack()];
+        int sp = 0;
+        int pc = 0;
+        while (true) {
+            switch (code[pc++]) {
+                case PUSH, CONST -> stack[sp++] = code[pc++];
+                case LOAD -> stack[sp++] = slots[code[pc++]];
+                case STORE -> slots[code[pc++]] = stack[--sp];
+                case POP -> sp--;
+                case ADD -> { sp--; stack[sp - 1] += stack[sp]; }
+                case SUB -> { sp--; stack[sp - 1] -= stack[sp]; }
+                case MUL -> { sp--; stack[sp - 1] *= stack[sp]; }
+                case DIV -> { sp--; stack[sp - 1] /= stack[sp]; }
+                case MOD -> { sp--; stack[sp - 1] %= stack[sp]; }
+                case NEG -> stack[sp - 1] = -stack[sp - 1];
+                case NOT -> stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                case AND -> { sp--; stack[sp - 1] = stack[sp - 1] != 0 && stack[sp] != 0 ? 1 : 0; }
+                case OR -> { sp--; stack[sp - 1] = stack[sp - 1] != 0 || stack[sp] != 0 ? 1 : 0; }
+                case EQ -> { sp--; stack[sp - 1] = stack[sp - 1] == stack[sp] ? 1 : 0; }
+                case NEQ -> { sp--; stack[sp - 1] = stack[sp - 1] != stack[sp] ? 1 : 0; }
+                case LT -> { sp--; stack[sp - 1] = stack[sp - 1] < stack[sp] ? 1 : 0; }
+                case GT -> { sp--; stack[sp - 1] = stack[sp - 1] > stack[sp] ? 1 : 0; }
+                case LTE -> { sp--; stack[sp - 1] = stack[sp - 1] <= stack[sp] ? 1 : 0; }
+                case GTE -> { sp--; stack[sp - 1] = stack[sp - 1] >= stack[sp] ? 1 : 0; }
+                case AND_STRING, OR_STRING -> {
+                    sp--;
+                    int left = stack[sp - 1];
+                    boolean and = code[pc - 1] == AND_STRING;
+                    if ((left != 0) == and) {
+                        castFail(constants[stack[sp]]);
+                    }
+                    stack[sp - 1] = and ? 0 : 1;
+                }
+                case PRINT_INT -> out.println(stack[--sp]);
+                case PRINT_STRING -> out.println(constants[stack[--sp]]);
+                case WARN -> LOGGER.warning("Variable " + constants[code[pc++]] + " already defined");
+                case THROW -> throw new RuntimeException(constants[code[pc++]]);
+                case CAST_FAIL -> castFail(constants[stack[sp - 1]]);
+                case PARSE -> stack[sp++] = Integer.parseInt(constants[code[pc++]]);
+                case HALT -> {
+                    return;
+                }
+                default -> throw new RuntimeException("Unknown opcode " + code[pc - 1]);
+            }
+        }
+    }
+
+    // throws the same ClassCastException as the interpreter casting a string to an Integer
+    private static void castFail(Object value) {
+        Integer ignored = (Integer) value;
+    }
+
+    /*
+     * Lowers a list of statements to a Program.
+     */
+    static class Lowering {
+        private enum Kind {
+            INT,
+            STRING
+        }
+
+        private int[] code = new int[64];
+        private int size = 0;
+        private int stack = 0;
+        private int maxStack = 0;
+        private final List<String> constants = new ArrayList<>();
+        private final Map<String, Integer> constantIndex = new HashMap<>();
+        private final Map<String, Integer> slots = new HashMap<>();
+        private final Map<String, Kind> kinds = new HashMap<>();
+        private Expr.Arithmetic[] pending = new Expr.Arithmetic[16];  // see lower(Expr)
+        private Kind[] lefts = new Kind[16];
+
+        Program lower(Iterable<Expr.Statement> statements) {
+            for (Expr.Statement statement : statements) {
+                if (!lowerStatement(statement)) {
+                    break;
+                }
+            }
+            emit(HALT, 0);
+            int[] result = new int[size];
+            System.arraycopy(code, 0, result, 0, size);
+            return new Program(result, constants.toArray(new String[0]), slots.size(), maxStack);
+        }
+
+        private boolean lowerStatement(Expr.Statement statement) {
+            String name = statement.var_name == null ? null : statement.var_name.text();
+            switch (statement.keyword.type()) {
+                case TEXT, OUTPUT -> {
+                    Kind kind = lower(statement.expr);
+                    if (kind == null) {
+                        return false;
+                    }
+                    emit(kind == Kind.INT ? PRINT_INT : PRINT_STRING, -1);
+                }
+                case VAR, SET -> {
+                    if (statement.keyword.type() == TokenType.VAR && kinds.containsKey(name)) {
+                        emit(WARN, 0, constant(name));
+                    } else if (statement.keyword.type() == TokenType.SET && !kinds.containsKey(name)) {
+                        emit(THROW, 0, constant("Variable " + name + " not defined"));
+                        return false;
+                    }
+                    Kind kind = lower(statement.expr);
+                    if (kind == null) {
+                        return false;
+                    }
+                    kinds.put(name, kind);
+                    emit(STORE, -1, slots.computeIfAbsent(name, n -> slots.size()));
+                }
+                default -> {
+                    emit(THROW, 0, constant("Unexpected token " + statement.keyword));
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Lowers an expression without recursion, so it can be nested arbitrarily deep. The code is emitted in the same
+        // order as a recursive walk: the left operand, then the right one, then the operator. Operators whose operands
+        // are not lowered yet wait in pending, and the kinds of their left operands in lefts. Returns the kind of the
+        // value left on the stack, or null if the expression always throws, in which case nothing after it is emitted
+        private Kind lower(Expr expr) {
+            int top = 0;
+            Expr node = expr;
+            while (true) {
+                while (node instanceof Expr.Arithmetic arithmetic) {
+                    if (top == pending.length) {
+                        pending = Arrays.copyOf(pending, top * 2);
+                        lefts = Arrays.copyOf(lefts, top * 2);
+                    }
+                    pending[top] = arithmetic;
+                    lefts[top++] = null;
+                    node = arithmetic.left;
+                }
+                Kind kind = lowerOperand(node);
+                while (true) {
+                    if (kind == null) {
+                        return null;
+                    }
+                    if (top == 0) {
+                        return kind;
+                    }
+                    Expr.Arithmetic operator = pending[top - 1];
+                    if (operator.right != null && lefts[top - 1] == null) {
+                        lefts[top - 1] = kind;
+                        node = operator.right;
+                        break;
+                    }
+                    top--;
+                    kind = operator.right == null ? lowerOperator(operator, kind, null)
+                            : lowerOperator(operator, lefts[top], kind);
+                }
+            }
+        }
+
+        // lowers a literal or a variable
+        private Kind lowerOperand(Expr expr) {
+            if (expr instanceof Expr.Literal literal) {
+                if (literal.value.type() == TokenType.STRING) {
+                    emit(CONST, 1, constant(literal.value.text()));
+                    return Kind.STRING;
+                }
+                try {
+                    emit(PUSH, 1, Integer.parseInt(literal.value.text()));
+                } catch (NumberFormatException e) {
+                    emit(PARSE, 1, constant(literal.value.text()));
+                }
+                return Kind.INT;
+            } else if (expr instanceof Expr.Variable variable) {
+                String name = variable.var_name.text();
+                Kind kind = kinds.get(name);
+                if (kind == null) {
+                    emit(THROW, 0, constant("Undefined variable " + name));
+                    return null;
+                }
+                emit(LOAD, 1, slots.get(name));
+                return kind;
+            }
+            throw new RuntimeException("Unknown expression " + expr);
+        }
+
+        // lowers an operator whose operands are on the stack, right is null for ~ and !
+        private Kind lowerOperator(Expr.Arithmetic expr, Kind left, Kind right) {
+            TokenType type = expr.operator.type();
+            if (type == TokenType.TILDE || type == TokenType.BANG) {
+                if (left == Kind.STRING) {
+                    emit(CAST_FAIL, 0);
+                    return null;
+                }
+                emit(type == TokenType.TILDE ? NEG : NOT, 0);
+                return Kind.INT;
+            }
+
+            if (type == TokenType.EQ || type == TokenType.NEQ) {
+                if (left == right) {
+                    emit(type == TokenType.EQ ? EQ : NEQ, -1);
+                } else {
+                    // an Integer never equals a String
+                    emit(POP, -1);
+                    emit(POP, -1);
+                    emit(PUSH, 1, type == TokenType.EQ ? 0 : 1);
+                }
+                return Kind.INT;
+            }
+            if (left == Kind.STRING) {
+                // the interpreter casts the left operand first
+                emit(POP, -1);
+                emit(CAST_FAIL, 0);
+                return null;
+            }
+            if (right == Kind.STRING) {
+                if (type == TokenType.AND || type == TokenType.OR) {
+                    emit(type == TokenType.AND ? AND_STRING : OR_STRING, -1);
+                    return Kind.INT;
+                }
+                emit(CAST_FAIL, 0);
+                return null;
+            }
+
+            int opcode = switch (type) {
+                case PLUS -> ADD;
+                case MINUS -> SUB;
+                case MUL -> MUL;
+                case DIV -> DIV;
+                case MOD -> MOD;
+                case AND -> AND;
+                case OR -> OR;
+                case LT -> LT;
+                case GT -> GT;
+                case LTE -> LTE;
+                case GTE -> GTE;
+                default -> throw new RuntimeException("Unknown operator: " + type);
+            };
+            emit(opcode, -1);
+            return Kind.INT;
+        }
+
+        private int constant(String value) {
+            return constantIndex.computeIfAbsent(value, v -> {
+                constants.add(v);
+                return constants.size() - 1;
+            });
+        }
+
+        private void emit(int opcode, int stackDelta) {
+            ensureCapacity(1);
+            code[size++] = opcode;
+            adjustStack(stackDelta);
+        }
+
+        private void emit(int opcode, int stackDelta, int operand) {
+            ensureCapacity(2);
+            code[size++] = opcode;
+            code[size++] = operand;
+            adjustStack(stackDelta);
+        }
+
+        private void adjustStack(int delta) {
+            stack += delta;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > code.length) {
+                int[] grown = new int[Math.max(code.length * 2, size + extra)];
+                System.arraycopy(code, 0, grown, 0, size);
+                code = grown;
+            }
+        }
+    }
+}
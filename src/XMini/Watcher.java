@@ -0,0 +1,586 @@
+package XMini;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/*
+ * Runs a script, then watches its file and updates the output whenever it changes (--watch), with work that grows with
+ * the change rather than with the script.
+ *
+ * The new text is compared with the previous one to find the changed region. Only the statements around it are lexed
+ * and parsed again: from the start of the statement the change begins in, until a statement starts at the same place
+ * in the unchanged rest of the text as one did before. The statements from there on are kept as they are.
+ *
+ * Every statement keeps its result: the value it wrote or printed, or the error it failed with. A statement runs
+ * again when it is new, or when the last statement before it that writes one of its variables got another result.
+ * It reads the results of those statements, so nothing before it has to run again, and a var or set whose result did
+ * not change stops the propagation. Reading a variable whose last write failed fails the same way: the program stops at
+ * its first error anyway, and this way a statement only depends on the last write of each variable it reads.
+ *
+ * Statements are identified by keys in program order that edits elsewhere leave alone, and every variable keeps the
+ * sorted keys of the statements that write and read it, so the statements a change reaches are found by binary search.
+ * Reading the file and comparing it with the previous text are the only steps that look at the whole script.
+ *
+ * After a change, the values printed by the output and text statements that changed are printed with their line
+ * numbers, followed by the error that stops the program if it is a new one. Warnings of the resolver are not repeated.
+ */
+class Watcher {
+    private static final long GAP = 1L << 32;  // between the keys of consecutive statements when they are numbered
+    private static final long NONE = Long.MAX_VALUE;
+    private static final int SETTLE_MILLIS = 20;  // editors often write a file in several steps
+
+    // a sorted set of statement keys
+    private static final class Keys {
+        private long[] keys = new long[4];
+        private int size = 0;
+
+        void add(long key) {
+            int index = Arrays.binarySearch(keys, 0, size, key);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            keys[index] = key;
+            size++;
+        }
+
+        void remove(long key) {
+            int index = Arrays.binarySearch(keys, 0, size, key);
+            if (index >= 0) {
+                System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+                size--;
+            }
+        }
+
+        // the greatest key below the given one, or -1
+        long lower(long key) {
+            int index = Arrays.binarySearch(keys, 0, size, key);
+            index = (index >= 0 ? index : -index - 1) - 1;
+            return index >= 0 ? keys[index] : -1;
+        }
+
+        // the smallest key above the given one, or NONE
+        long higher(long key) {
+            int index = Arrays.binarySearch(keys, 0, size, key);
+            index = index >= 0 ? index + 1 : -index - 1;
+            return index < size ? keys[index] : NONE;
+        }
+
+        // adds the keys in (from, to] to the set
+        void addRange(long from, long to, TreeSet<Long> set) {
+            int index = Arrays.binarySearch(keys, 0, size, from);
+            for (index = index >= 0 ? index + 1 : -index - 1; index < size && keys[index] <= to; index++) {
+                set.add(keys[index]);
+            }
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    // a variable of the script, and the statements that use it
+    private static final class Name {
+        final int slot;
+        final Keys writers = new Keys();  // var and set statements
+        final Keys definitions = new Keys();  // var statements
+        final Keys readers = new Keys();
+        boolean defined;  // while a statement is evaluated
+        int seen = -1;  // the last statement it was listed for, see reads()
+
+        Name(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    private record Failure(String message) {
+    }
+
+    // hands the tokens of a lexer to a parser, noting where the first token of a statement starts
+    private static final class Source implements Supplier<Token> {
+        final Lexer lexer;
+        int start = -1;
+        int line;
+
+        Source(Lexer lexer) {
+            this.lexer = lexer;
+        }
+
+        @Override
+        public Token get() {
+            Token token = lexer.nextToken();
+            if (start < 0) {
+                start = lexer.tokenStart();
+                line = lexer.tokenLine();
+            }
+            return token;
+        }
+    }
+
+    private final OutputSink out;
+    private final Interpreter interpreter;
+    private final Map<String, Name> names = new HashMap<>();
+    private String text = "";
+    private char[] chars = new char[0];  // the same, for comparing
+    private boolean loaded = false;
+
+    // the statements in program order
+    private int size = 0;
+    private Expr.Statement[] statements = new Expr.Statement[16];
+    private long[] keys = new long[16];
+    private int[] starts = new int[16];  // position in the text
+    private int[] lines = new int[16];
+    private Name[] written = new Name[16];  // null for text and output
+    private Name[][] reads = new Name[16][];
+    private Object[] results = new Object[16];  // null until the statement has run
+
+    private final TreeSet<Long> failures = new TreeSet<>();  // the keys of the statements that failed
+    private final TreeSet<Long> pending = new TreeSet<>();  // the keys of the statements to run again
+    private final TreeSet<Long> changed = new TreeSet<>();  // the output and text statements that printed another value
+    private final ArrayDeque<Expr> stack = new ArrayDeque<>();
+    private long fresh = -1;  // the last key of the new statements while they run
+    private int ran;
+
+    Watcher(OutputSink out) {
+        this.out = out;
+        this.interpreter = new Interpreter(out);
+    }
+
+    // Runs the file, then runs its changes until the thread is interrupted
+    void watch(Path path, Charset charset) throws IOException, InterruptedException {
+        update(Files.readString(path, charset));
+        Path directory = path.toAbsolutePath().getParent();
+        Path name = path.getFileName();
+        System.err.println("Watching " + path + " for changes");
+        try (WatchService service = directory.getFileSystem().newWatchService()) {
+            directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                WatchKey key = service.take();
+                boolean modified = false;
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        modified |= event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context());
+                    }
+                    key.reset();
+                } while ((key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+                if (modified) {
+                    try {
+                        update(Files.readString(path, charset));
+                    } catch (NoSuchFileException e) {
+                        // being replaced, the new file comes with its own event
+                    }
+                }
+            }
+        }
+    }
+
+    // Brings the results up to date with the new text of the script, and prints what changed
+    void update(String newText) {
+        long begin = System.nanoTime();
+        char[] newChars = newText.toCharArray();
+        int length = chars.length;
+        int newLength = newChars.length;
+        int limit = Math.min(length, newLength);
+        int prefix = Arrays.mismatch(chars, newChars);
+        if (prefix < 0 && loaded) {
+            return;
+        }
+        prefix = prefix < 0 ? limit : prefix;
+        int suffix = commonSuffix(chars, newChars, limit - prefix);
+        int delta = newLength - length;
+
+        // parse again from the statement the change begins in, or from the start
+        int first = prefix == 0 ? -1 : Arrays.binarySearch(starts, 0, size, prefix - 1);
+        first = first >= 0 ? first : -first - 2;
+        int from = first >= 0 ? starts[first] : 0;
+        int fromLine = first >= 0 ? lines[first] : 1;
+        first = Math.max(first, 0);
+        Source source = new Source(Lexer.resume(newText, from, fromLine, from - newText.lastIndexOf('\n', from - 1) - 1,
+                false));
+        Parser parser = new Parser(source);
+        List<Expr.Statement> parsed = new ArrayList<>();
+        List<int[]> positions = new ArrayList<>();
+        int end = size;  // the first statement kept after the change
+        try {
+            while (true) {
+                source.start = -1;
+                Expr.Statement statement = parser.next();
+                if (statement == null) {
+                    break;
+                }
+                if (source.start >= newLength - suffix) {
+                    int old = Arrays.binarySearch(starts, first, size, source.start - delta);
+                    if (old >= 0) {
+                        end = old;
+                        break;
+                    }
+                }
+                parsed.add(statement);
+                positions.add(new int[]{source.start, source.line});
+            }
+        } catch (Lexer.LexerException e) {
+            System.err.println(e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            System.err.println("Error on line " + source.line + ": " + e.getMessage());
+            return;
+        }
+
+        if (step(first, end, parsed.size()) == 0) {
+            renumber();
+        }
+        long firstFailure = failures.isEmpty() ? NONE : failures.first();
+        Object failure = firstFailure == NONE ? null : results[indexOf(firstFailure)];
+        int lineDelta = newlines(newText, prefix, newLength - suffix) - newlines(text, prefix, length - suffix);
+        text = newText;
+        chars = newChars;
+        replace(first, end, parsed, positions, delta, lineDelta);
+
+        // the new statements run in order, and only schedule the statements after them
+        ran = 0;
+        fresh = parsed.isEmpty() ? -1 : keys[first + parsed.size() - 1];
+        for (int i = first; i < first + parsed.size(); i++) {
+            run(i);
+        }
+        fresh = -1;
+        while (!pending.isEmpty()) {
+            run(indexOf(pending.pollFirst()));
+        }
+        if (!loaded) {
+            loaded = true;
+            printAll();
+        } else {
+            report(firstFailure, failure);
+            System.err.printf("%d statements parsed, %d of %d run in %.2f ms%n", parsed.size(), ran, size,
+                    (System.nanoTime() - begin) / 1e6);
+        }
+        out.flush();
+    }
+
+    // replaces the statements in [first, end) with the parsed ones, and schedules the ones after them that read what
+    // the removed ones wrote
+    private void replace(int first, int end, List<Expr.Statement> parsed, List<int[]> positions, int delta,
+                         int lineDelta) {
+        List<Name> touched = new ArrayList<>();
+        for (int i = first; i < end; i++) {
+            unindex(i);
+            if (written[i] != null) {
+                touched.add(written[i]);
+            }
+        }
+        int count = parsed.size();
+        long low = first > 0 ? keys[first - 1] : 0;
+        long step = step(first, end, count);
+
+        int newSize = size - (end - first) + count;
+        if (newSize > statements.length) {
+            int capacity = Math.max(statements.length * 2, newSize);
+            statements = Arrays.copyOf(statements, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            written = Arrays.copyOf(written, capacity);
+            reads = Arrays.copyOf(reads, capacity);
+            results = Arrays.copyOf(results, capacity);
+        }
+        int tail = size - end;
+        int to = first + count;
+        System.arraycopy(statements, end, statements, to, tail);
+        System.arraycopy(keys, end, keys, to, tail);
+        System.arraycopy(starts, end, starts, to, tail);
+        System.arraycopy(lines, end, lines, to, tail);
+        System.arraycopy(written, end, written, to, tail);
+        System.arraycopy(reads, end, reads, to, tail);
+        System.arraycopy(results, end, results, to, tail);
+        for (int i = newSize; i < size; i++) {
+            statements[i] = null;
+            written[i] = null;
+            reads[i] = null;
+            results[i] = null;
+        }
+        size = newSize;
+        for (int i = to; i < size; i++) {
+            starts[i] += delta;
+            lines[i] += lineDelta;
+        }
+
+        for (int k = 0; k < count; k++) {
+            int i = first + k;
+            Expr.Statement statement = parsed.get(k);
+            statements[i] = statement;
+            keys[i] = low + step * (k + 1);
+            starts[i] = positions.get(k)[0];
+            lines[i] = positions.get(k)[1];
+            TokenType type = statement.keyword.type();
+            written[i] = type == TokenType.VAR || type == TokenType.SET ? name(statement.var_name.text()) : null;
+            reads[i] = reads(i, statement.expr);
+            results[i] = null;
+            index(i);
+        }
+        // the statements after the change that read what the removed ones wrote
+        long after = to < size ? keys[to] - 1 : NONE;
+        for (Name name : touched) {
+            propagate(name, after);
+        }
+    }
+
+    // the distance between the keys of count statements replacing the ones in [first, end), 0 if they do not fit
+    private long step(int first, int end, int count) {
+        long low = first > 0 ? keys[first - 1] : 0;
+        return end < size ? Math.min(GAP, (keys[end] - low) / (count + 1)) : GAP;
+    }
+
+    private Name name(String text) {
+        return names.computeIfAbsent(text, key -> new Name(names.size()));
+    }
+
+    // the distinct variables the expression reads, also binding them to their slots
+    private Name[] reads(int i, Expr expr) {
+        List<Name> found = new ArrayList<>();
+        stack.push(expr);
+        while (!stack.isEmpty()) {
+            Expr node = stack.pop();
+            if (node instanceof Expr.Arithmetic arithmetic) {
+                if (arithmetic.right != null) {
+                    stack.push(arithmetic.right);
+                }
+                stack.push(arithmetic.left);
+            } else if (node instanceof Expr.Variable variable) {
+                Name name = name(variable.var_name.text());
+                variable.slot = name.slot;
+                if (name.seen != i) {
+                    name.seen = i;
+                    found.add(name);
+                }
+            }
+        }
+        for (Name name : found) {
+            name.seen = -1;
+        }
+        return found.toArray(new Name[0]);
+    }
+
+    private void index(int i) {
+        long key = keys[i];
+        if (written[i] != null) {
+            written[i].writers.add(key);
+            if (statements[i].keyword.type() == TokenType.VAR) {
+                written[i].definitions.add(key);
+            }
+        }
+        for (Name name : reads[i]) {
+            name.readers.add(key);
+        }
+        if (results[i] instanceof Failure) {
+            failures.add(key);
+        }
+    }
+
+    private void unindex(int i) {
+        long key = keys[i];
+        if (written[i] != null) {
+            written[i].writers.remove(key);
+            written[i].definitions.remove(key);
+        }
+        for (Name name : reads[i]) {
+            name.readers.remove(key);
+        }
+        failures.remove(key);
+    }
+
+    // spreads the keys out again, once a change left no room between two of them
+    private void renumber() {
+        for (Name name : names.values()) {
+            name.writers.clear();
+            name.definitions.clear();
+            name.readers.clear();
+        }
+        failures.clear();
+        for (int i = 0; i < size; i++) {
+            keys[i] = GAP * (i + 1);
+            index(i);
+        }
+    }
+
+    private int indexOf(long key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    // schedules the statements that see the write of the variable by the statement with the given key: the ones that
+    // read it up to the next write, and the next write, which fails unless the variable is defined. New statements
+    // run anyway
+    private void propagate(Name name, long key) {
+        if (key == NONE) {
+            return;
+        }
+        long next = name.writers.higher(key);
+        name.readers.addRange(Math.max(key, fresh), next, pending);
+        if (next != NONE && next > fresh) {
+            pending.add(next);
+        }
+    }
+
+    private void run(int i) {
+        ran++;
+        Object result = evaluate(i);
+        Object previous = results[i];
+        results[i] = result;
+        long key = keys[i];
+        if (result instanceof Failure) {
+            failures.add(key);
+        } else {
+            failures.remove(key);
+        }
+        if (result.equals(previous)) {
+            return;
+        }
+        if (written[i] != null) {
+            propagate(written[i], key);
+        } else {
+            changed.add(key);
+        }
+    }
+
+    private Object evaluate(int i) {
+        Expr.Statement statement = statements[i];
+        long key = keys[i];
+        if (statement.keyword.type() == TokenType.SET && written[i].definitions.lower(key) < 0) {
+            return new Failure("Variable " + statement.var_name.text() + " not defined");
+        }
+        boolean undefined = false;
+        for (Name name : reads[i]) {
+            long writer = name.writers.lower(key);
+            name.defined = writer >= 0;
+            if (!name.defined) {
+                undefined = true;
+                continue;
+            }
+            Object value = results[indexOf(writer)];
+            if (value instanceof Failure failure) {
+                return failure;
+            }
+            interpreter.define(name.slot, value);
+        }
+        if (undefined) {
+            bind(statement.expr, false);
+        }
+        try {
+            return interpreter.value(statement.expr);
+        } catch (RuntimeException e) {
+            return new Failure(e.getMessage() != null ? e.getMessage() : e.getClass().getName());
+        } finally {
+            if (undefined) {
+                bind(statement.expr, true);
+            }
+        }
+    }
+
+    // binds the variables of the expression that are not defined to nothing, or all of them back to their slots
+    private void bind(Expr expr, boolean all) {
+        stack.push(expr);
+        while (!stack.isEmpty()) {
+            Expr node = stack.pop();
+            if (node instanceof Expr.Arithmetic arithmetic) {
+                if (arithmetic.right != null) {
+                    stack.push(arithmetic.right);
+                }
+                stack.push(arithmetic.left);
+            } else if (node instanceof Expr.Variable variable) {
+                Name name = names.get(variable.var_name.text());
+                variable.slot = all || name.defined ? name.slot : Resolver.UNDEFINED;
+            }
+        }
+    }
+
+    // prints the output of the whole program, like a run of the file would
+    void printAll() {
+        long firstFailure = failures.isEmpty() ? NONE : failures.first();
+        for (int i = 0; i < size && keys[i] < firstFailure; i++) {
+            if (written[i] == null) {
+                out.println(results[i]);
+            }
+        }
+        changed.clear();
+        if (firstFailure != NONE) {
+            out.flush();
+            int i = indexOf(firstFailure);
+            System.err.println("Error on line " + lines[i] + ": " + ((Failure) results[i]).message());
+        }
+    }
+
+    // prints the values that changed before the first error, the ones an error no longer hides, and a new error
+    private void report(long oldFailure, Object oldResult) {
+        long firstFailure = failures.isEmpty() ? NONE : failures.first();
+        if (firstFailure > oldFailure) {
+            int i = Arrays.binarySearch(keys, 0, size, oldFailure);
+            for (i = i >= 0 ? i : -i - 1; i < size && keys[i] < firstFailure; i++) {
+                if (written[i] == null) {
+                    changed.add(keys[i]);
+                }
+            }
+        }
+        for (long key : changed.headSet(firstFailure)) {
+            int i = indexOf(key);
+            if (i >= 0) {
+                out.println(lines[i] + ": " + results[i]);
+            }
+        }
+        changed.clear();
+        if (firstFailure != NONE) {
+            int i = indexOf(firstFailure);
+            if (firstFailure != oldFailure || !results[i].equals(oldResult)) {
+                out.println(lines[i] + ": error: " + ((Failure) results[i]).message());
+            }
+        }
+    }
+
+    // the length of the common suffix of the two texts, up to limit, compared a block at a time
+    private static int commonSuffix(char[] a, char[] b, int limit) {
+        int suffix = 0;
+        while (suffix < limit) {
+            int block = Math.min(4096, limit - suffix);
+            int from = a.length - suffix - block;
+            int newFrom = b.length - suffix - block;
+            if (Arrays.mismatch(a, from, from + block, b, newFrom, newFrom + block) < 0) {
+                suffix += block;
+                continue;
+            }
+            int i = block - 1;
+            while (a[from + i] == b[newFrom + i]) {
+                i--;
+            }
+            return suffix + block - 1 - i;
+        }
+        return suffix;
+    }
+
+    private static int newlines(String text, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -16,53 +16,305 @@ package XMini;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
+import java.util.function.Consumer;
 
 public class XMini {
+    private enum Engine {
+        INTERPRETER,
+        COMPILER,
+        VM,
+        NODES
+    }
+
+    private static Engine engine = Engine.INTERPRETER;
+    private static boolean optimize = false;
+    private static boolean pipeline = false;
+    private static boolean parallelLex = false;
+    private static boolean parallel = false;
+    private static boolean memoize = false;
+    private static boolean arena = false;
+    private static boolean watch = false;
+    private static boolean latency = false;
+    private static OutputSink.FlushPolicy flushPolicy = OutputSink.FlushPolicy.SIZE;
+    private static ProgramCache cache = null;
+    private static Profiler profiler = null;
+    private static Snapshot restored = null;
+    private static Path checkpoint = null;
+
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: java XMini.XMini [input file]");
+        List<String> files = new ArrayList<>();
+        int options = 0;  // other than --watch and --flush
+        boolean invalid = false;
+        for (String arg : args) {
+            if (arg.startsWith("--") && !arg.equals("--watch") && !arg.startsWith("--flush=")) {
+                options++;
+            }
+            if (arg.equals("--compile")) {
+                engine = Engine.COMPILER;
+            } else if (arg.equals("--vm")) {
+                engine = Engine.VM;
+            } else if (arg.equals("--nodes")) {
+                engine = Engine.NODES;
+            } else if (arg.equals("--optimize")) {
+                optimize = true;
+            } else if (arg.equals("--pipeline")) {
+                pipeline = true;
+            } else if (arg.equals("--parallel-lex")) {
+                parallelLex = true;
+            } else if (arg.equals("--parallel")) {
+                parallel = true;
+            } else if (arg.equals("--cse")) {
+                memoize = true;
+            } else if (arg.equals("--arena")) {
+                arena = true;
+            } else if (arg.equals("--watch")) {
+                watch = true;
+            } else if (arg.equals("--latency")) {
+                latency = true;
+            } else if (arg.equals("--profile")) {
+                profiler = new Profiler();
+            } else if (arg.equals("--cache")) {
+                cache = new ProgramCache(ProgramCache.defaultDirectory());
+            } else if (arg.startsWith("--cache=")) {
+                cache = new ProgramCache(Paths.get(arg.substring("--cache=".length())));
+            } else if (arg.startsWith("--restore=")) {
+                restored = Snapshot.read(Paths.get(arg.substring("--restore=".length())));
+            } else if (arg.startsWith("--checkpoint=")) {
+                checkpoint = Paths.get(arg.substring("--checkpoint=".length()));
+            } else if (arg.startsWith("--flush=")) {
+                String policy = arg.substring("--flush=".length());
+                if (policy.equals("line") || policy.equals("size") || policy.equals("end")) {
+                    flushPolicy = OutputSink.FlushPolicy.valueOf(policy.toUpperCase());
+                } else {
+                    invalid = true;
+                }
+            } else {
+                files.add(arg);
+            }
+        }
+        if (invalid || files.size() > 1 || (engine != Engine.INTERPRETER && (restored != null || checkpoint != null || memoize))
+                || (pipeline && parallelLex) || (watch && (files.size() != 1 || options > 0))) {
+            System.out.println("Usage: java XMini.XMini [--compile | --vm | --nodes] [--optimize] [--pipeline | --parallel] [--parallel-lex] [--cse] [--arena] [--watch] [--latency] [--flush=line|size|end] [--cache[=dir]] [--profile] [--restore=file] [--checkpoint=file] [input file]");
+            System.out.println("--restore, --checkpoint and --cse only work with the interpreter, --parallel-lex not with --pipeline");
+            System.out.println("--watch takes a file and no other options but --flush");
             System.exit(1);
-        } else if (args.length == 1) {
-            runFile(args[0]);
-        } else {
-            runConsole();
+        }
+        if (profiler != null || memoize) {
+            // a profiler and memoized results only follow a single interpreter
+            parallel = false;
+        }
+        try {
+            if (watch) {
+                new Watcher(OutputSink.stdout(flushPolicy)).watch(Paths.get(files.get(0)), Charset.defaultCharset());
+            } else if (files.size() == 1) {
+                runFile(files.get(0));
+            } else {
+                runConsole();
+            }
+        } catch (Lexer.LexerException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     private static void runFile(String fileName) {
+        OutputSink out = OutputSink.stdout(flushPolicy);
+        Interpreter interpreter = engine == Engine.INTERPRETER ? new Interpreter(out, restored, profiler) : null;
+        if (memoize) {
+            interpreter.memoize();
+        }
+        boolean failed = false;
         try {
-            String input = Files.readString(Paths.get(fileName), Charset.defaultCharset());
-            Interpreter interpreter = new Interpreter();
-
-            interpret(interpreter, input);
+            Path path = Paths.get(fileName);
+            Charset charset = Charset.defaultCharset();
+            String key = cache == null ? null : cache.key(path, charset);
+            Parser cached = key == null ? null : cache.load(key);
+            if (arena) {
+                runArena(cached != null ? cached : parser(path, charset), cached == null ? key : null, out, interpreter);
+                return;
+            }
+            if (engine == Engine.INTERPRETER && !optimize && !parallel) {
+                if (cached == null) {
+                    stream(interpreter, path, charset, key);
+                } else {
+                    Expr.Statement statement;
+                    while ((statement = cached.next()) != null) {
+                        interpreter.interpret(statement);
+                    }
+                }
+                checkpoint(interpreter);
+                return;
+            }
+            List<Expr.Statement> statements;
+            if (cached != null) {
+                statements = cached.parse();
+            } else {
+                statements = parser(path, charset).parse();
+                if (key != null) {
+                    cache.store(key, statements);
+                }
+            }
+            if (optimize) {
+                statements = optimize(statements);
+            }
+            run(statements, out, interpreter);
+            checkpoint(interpreter);
         } catch (IOException e) {
-            System.out.println("Error: " + e.getMessage());
+            // the output of the program comes first
+            out.flush();
+            System.err.println("Error: " + e.getMessage());
+            failed = true;
+        } finally {
+            out.flush();
+            if (memoize) {
+                System.err.println(interpreter.subexpressions().report());
+            }
+            if (profiler != null) {
+                profiler.report(System.err);
+            }
+        }
+        if (failed) {
+            System.exit(1);
         }
     }
 
-    private static void runConsole() {
-        System.out.println("XMini 0.1.0 (Aug 28 2022 05:12:00)");
-        Scanner scanner = new Scanner(System.in);
-        Interpreter interpreter = new Interpreter();
-        while (true) {
-            System.out.print(">>> ");
-            String input = scanner.nextLine();
-            if (input == null || input.equals("quit")) {
-                break;
+    // Parses the whole file into an Arena first. Engines that take the program one statement at a time get the tree of
+    // each statement only when they reach it, the others get all the trees at once.
+    private static void runArena(Parser parser, String key, OutputSink out, Interpreter interpreter)
+            throws IOException {
+        Arena program = parser.parseArena();
+        System.err.println(program.report());
+        if (key != null) {
+            cache.store(key, program);
+        }
+        if (engine == Engine.INTERPRETER && !optimize && !parallel) {
+            for (Expr.Statement statement : program) {
+                interpreter.interpret(statement);
+            }
+        } else if (engine == Engine.VM && !optimize) {
+            new VM(out).run(new VM.Lowering().lower(program));
+        } else {
+            List<Expr.Statement> statements = program.statements();
+            if (optimize) {
+                statements = optimize(statements);
+            }
+            run(statements, out, interpreter);
+        }
+        checkpoint(interpreter);
+    }
+
+    // With --parallel-lex, the whole file is read and lexed on a fork-join pool before parsing starts
+    private static Parser parser(Path path, Charset charset) throws IOException {
+        if (parallelLex) {
+            return new Parser(new ParallelLexer(Files.readString(path, charset)).getTokens());
+        }
+        return new Parser(Lexer.ofFile(path, charset));
+    }
+
+    private static List<Expr.Statement> optimize(List<Expr.Statement> statements) {
+        Optimizer optimizer = new Optimizer(checkpoint != null);
+        List<Expr.Statement> optimized = optimizer.optimize(statements);
+        System.err.println("Optimizer eliminated " + optimizer.eliminated() + " nodes, " + optimizer.deadStores()
+                + " dead stores");
+        return optimized;
+    }
+
+    // runs each statement as soon as it is parsed. With a cache key, the statements are also added to a cache entry,
+    // which is stored once the whole file has run
+    private static void stream(Interpreter interpreter, Path path, Charset charset, String key) throws IOException {
+        ProgramCache.Entry entry = key == null ? null : new ProgramCache.Entry();
+        Consumer<Expr.Statement> execute = entry == null ? interpreter::interpret : statement -> {
+            interpreter.interpret(statement);
+            entry.add(statement);
+        };
+        if (pipeline) {
+            new Pipeline(Lexer.ofFile(path, charset)).run(execute);
+        } else {
+            Parser parser = parser(path, charset);
+            Expr.Statement statement;
+            while ((statement = parser.next()) != null) {
+                execute.accept(statement);
             }
-            interpret(interpreter, input);
         }
+        if (entry != null) {
+            cache.store(key, entry);
+        }
+    }
+
+    private static void run(List<Expr.Statement> statements, OutputSink out, Interpreter interpreter) {
+        switch (engine) {
+            case COMPILER -> compile(statements, out);
+            case VM -> new VM(out).run(new VM.Lowering().lower(statements));
+            case NODES -> runNodes(statements, out);
+            default -> {
+                if (parallel) {
+                    new ParallelInterpreter(interpreter, out).interpret(statements);
+                } else {
+                    interpreter.interpret(statements);
+                }
+            }
+        }
+    }
+
+    // compiles the whole program to a JVM class, falling back to the interpreter if it cannot be compiled
+    private static void compile(List<Expr.Statement> statements, OutputSink out) {
+        Runnable program;
+        try {
+            program = new Compiler().compile(statements, out);
+        } catch (Compiler.CompileException e) {
+            System.err.println("Warning: " + e.getMessage() + ", falling back to the interpreter");
+            new Interpreter(out, profiler).interpret(statements);
+            return;
+        }
+        program.run();
     }
 
-    private static void interpret(Interpreter interpreter, String input) {
-        Lexer lexer = new Lexer(input);
-        List<Token> tokens = lexer.getTokens();
-        Parser parser = new Parser(tokens);
-        List<Expr.Statement> statements = parser.parse();
-        interpreter.interpret(statements);
+    // runs the whole program on self-specializing nodes, falling back to the interpreter if it is nested too deeply
+    private static void runNodes(List<Expr.Statement> statements, OutputSink out) {
+        NodeInterpreter program;
+        try {
+            program = new NodeInterpreter(statements);
+        } catch (NodeInterpreter.TooDeepException e) {
+            System.err.println("Warning: " + e.getMessage() + ", falling back to the interpreter");
+            new Interpreter(out, profiler).interpret(statements);
+            return;
+        }
+        program.run(out);
+    }
+
+    private static void runConsole() throws IOException {
+        System.out.println("XMini 0.1.0 (Aug 28 2022 05:12:00)");
+        OutputSink out = OutputSink.stdout(flushPolicy);
+        Interpreter interpreter = new Interpreter(out, restored, profiler);
+        if (memoize) {
+            interpreter.memoize();
+        }
+        new Repl(interpreter, out, !memoize, latency).run();
+        if (memoize) {
+            System.err.println(interpreter.subexpressions().report());
+        }
+        if (profiler != null) {
+            profiler.report(System.err);
+        }
+        try {
+            checkpoint(interpreter);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // saves the variables of the interpreter, if asked to
+    private static void checkpoint(Interpreter interpreter) throws IOException {
+        if (checkpoint != null) {
+            interpreter.snapshot().write(checkpoint);
+        }
     }
 
 //    public static void error(int line, int pos, String msg) {
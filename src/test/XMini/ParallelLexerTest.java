@@ -0,0 +1,124 @@
+package XMini;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Checks that ParallelLexer gives the same tokens and errors as Lexer.getTokens(). The inputs are lexed with a minimum
+ * chunk size of one character, so that they are cut at up to 16 line breaks, and they are built from constructs that
+ * span lines: strings with line breaks, `//` followed by a line break, which comments out the next line too, and a
+ * `text` whose bare-word argument is on the next line.
+ */
+class ParallelLexerTest {
+    private static final String[] SPANNING = {
+            "text \"two\nlines\"\n",
+            "text \"output 1\noutput 2\"\n",
+            "text \"a \\\" quote\nand // no comment\"\n",
+            "//\noutput 666\n",
+            "// output 666\n",
+            "text\nword\n",
+            "text\n\noutput\n",
+    };
+    private static final String[] PLAIN = {
+            "output + 1 2\n",
+            "var x * 3 4\n",
+            "set x - x 1\n",
+            "output x\n",
+            "text \"plain\"\n",
+            "output == \"a\" \"b\"\n",
+            "\n",
+    };
+
+    private static ForkJoinPool pool;
+
+    @BeforeAll
+    static void startPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterAll
+    static void stopPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    void spanningConstructsOnEveryLine() {
+        for (String construct : SPANNING) {
+            assertSameTokens(construct.repeat(40));
+            assertSameTokens(PLAIN[0] + construct.repeat(40) + PLAIN[1]);
+        }
+    }
+
+    @Test
+    void stringSpanningManyChunks() {
+        assertSameTokens("output 1\n".repeat(50) + "text \"" + "output 2\n".repeat(100) + "\"\n"
+                + "output 3\n".repeat(50));
+    }
+
+    @Test
+    void commentsAndStringsThatLookLikeEachOther() {
+        assertSameTokens("text \"//\n\"\noutput 1\n".repeat(30));
+        assertSameTokens("// \"\noutput 1\n\"\n".repeat(30) + "output 2\n");
+        assertSameTokens("text\n\"a\nb\"\n".repeat(30));
+    }
+
+    @Test
+    void errorAfterABoundary() {
+        String program = PLAIN[0].repeat(100);
+        assertSameTokens(program + "output @\n" + program);
+        assertSameTokens(program + "output # 1\n");
+        assertSameTokens(program + "text \"never closed\n" + program);
+    }
+
+    @Test
+    void errorInsideAStringIsNotReported() {
+        // the chunks starting inside the string see @ and # as tokens, but they are text
+        assertSameTokens(PLAIN[0].repeat(20) + "text \"" + "output @ #\n".repeat(100) + "\"\n" + PLAIN[0]);
+    }
+
+    @Test
+    void errorAfterAStringSpanningChunks() {
+        assertSameTokens("text \"" + "output 1\n".repeat(100) + "\" output @\n" + PLAIN[0].repeat(20));
+    }
+
+    @Test
+    void randomPrograms() {
+        Random random = new Random(23);
+        for (int round = 0; round < 300; round++) {
+            StringBuilder program = new StringBuilder();
+            int lines = 1 + random.nextInt(200);
+            for (int i = 0; i < lines; i++) {
+                if (random.nextInt(3) == 0) {
+                    program.append(SPANNING[random.nextInt(SPANNING.length)]);
+                } else {
+                    program.append(PLAIN[random.nextInt(PLAIN.length)]);
+                }
+            }
+            if (random.nextInt(4) == 0) {
+                program.insert(random.nextInt(program.length() + 1), random.nextBoolean() ? "@" : "\"");
+            }
+            assertSameTokens(program.toString());
+        }
+    }
+
+    private static void assertSameTokens(String input) {
+        assertEquals(lex(() -> new Lexer(input).getTokens()), lex(() -> new ParallelLexer(input, pool, 1).getTokens()),
+                input);
+    }
+
+    // the tokens, or the message of the error
+    private static Object lex(Supplier<List<Token>> tokens) {
+        try {
+            return tokens.get();
+        } catch (Lexer.LexerException e) {
+            return e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package XMini;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Checks that a Watcher brought up to date one edit at a time prints the same as a new Watcher given the edited text at
+ * once. Each check compares printAll(): the output of the statements before the first error, and the error with its
+ * line number. The edits are random, or pile up at one place until the keys of the statements are numbered again.
+ */
+class WatcherTest {
+    private static final String[] NAMES = {"a", "b", "c", "d"};
+    private static final String[] OPERATORS = {"+", "-", "*", "/", "%", "&&", "||", "==", "!=", "<", ">="};
+    private static final String[] FRAGMENTS = {" ", "\n", "1", "0", "x", "\"", "// c\n", "+ 1 ", "a ", "output ",
+            "set a ", "var b ", "/ ", "~ "};
+
+    private final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    private PrintStream err;
+    private Random random;
+
+    @BeforeAll
+    static void quiet() {
+        // the redefinition warnings of the resolver
+        Logger.getLogger(Interpreter.class.getName()).setLevel(Level.OFF);
+    }
+
+    @BeforeEach
+    void captureErrors() {
+        err = System.err;
+        System.setErr(new PrintStream(errors, true, StandardCharsets.UTF_8));
+    }
+
+    @AfterEach
+    void restoreErrors() {
+        System.setErr(err);
+    }
+
+    @Test
+    void randomEdits() {
+        for (int seed = 0; seed < 60; seed++) {
+            random = new Random(seed);
+            String text = program(10 + random.nextInt(40));
+            Checked watcher = new Checked(text);
+            for (int edit = 0; edit < 60; edit++) {
+                int position = random.nextInt(text.length() + 1);
+                int removed = random.nextInt(4) == 0 ? 0 : random.nextInt(Math.min(30, text.length() - position) + 1);
+                String inserted = random.nextInt(3) == 0 ? "" : snippet();
+                text = watcher.edit(text, text.substring(0, position) + inserted + text.substring(position + removed));
+            }
+        }
+    }
+
+    @Test
+    void manyInsertionsAtOnePlaceRenumberTheKeys() {
+        // every insertion after the first two statements leaves less room between the keys around it, until there
+        // is none
+        random = new Random(1);
+        String first = "var a 1\nvar b 2\n";
+        String text = first + "output + a b\n";
+        Checked watcher = new Checked(text);
+        for (int i = 0; i < 150; i++) {
+            text = watcher.edit(text, first + statement() + "\n" + text.substring(first.length()));
+            if (i % 10 == 9) {
+                // an error that stops everything after it, and then goes away again
+                String before = text;
+                watcher.edit(text, first + "set a / 1 0\n" + text.substring(first.length()));
+                text = watcher.edit(text, before);
+            }
+        }
+        for (int i = 0; i < 40; i++) {
+            int position = text.indexOf('\n', random.nextInt(text.length())) + 1;
+            text = watcher.edit(text, text.substring(0, position) + statement() + "\n" + text.substring(position));
+        }
+    }
+
+    @Test
+    void errorsComeAndGo() {
+        String text = "var a 1\nvar b 2\noutput a\nset a / b 1\noutput + a b\nvar c a\noutput c\n";
+        Checked watcher = new Checked(text);
+        text = watcher.edit(text, text.replace("/ b 1", "/ b 0"));
+        text = watcher.edit(text, text.replace("var b 2", "var b 0"));
+        text = watcher.edit(text, text.replace("/ b 0", "/ 1 b"));
+        text = watcher.edit(text, text.replace("var b 0", "var b \"s\""));
+        text = watcher.edit(text, text.replace("var b \"s\"", "var b 5"));
+        text = watcher.edit(text, text.replace("var a 1\n", ""));
+        watcher.edit(text, "var a 7\n" + text);
+    }
+
+    @Test
+    void editsRunOnlyWhatTheyAffect() {
+        String text = "var a 1\n" + "output + a 1\n".repeat(100);
+        Checked watcher = new Checked(text);
+        // the new statements run once each, although each one reads what the one before it writes
+        text = watcher.edit(text, text + "var b a\nset b + b 1\nset b * b 2\noutput b\n");
+        assertReported(watcher, "5 statements parsed, 5 of 105 run");
+        text = watcher.edit(text, text.replace("output b", "output - b 1"));
+        assertReported(watcher, "1 statements parsed, 1 of 105 run");
+        watcher.edit(text, text.replace("var a 1", "var a 2"));
+        assertReported(watcher, "1 statements parsed, 105 of 105 run");
+    }
+
+    private static void assertReported(Checked watcher, String expected) {
+        assertTrue(watcher.reported.startsWith(expected), watcher.reported);
+    }
+
+    // a Watcher that is compared with a new one after every edit
+    private final class Checked {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final OutputSink out = new OutputSink(bytes, OutputSink.FlushPolicy.END);
+        private final Watcher watcher = new Watcher(out);
+        private String reported;  // what the last update printed on stderr
+
+        Checked(String text) {
+            watcher.update(text);
+        }
+
+        // applies the edit and returns the text the watcher now has: the new one, or the old one if it does not parse
+        String edit(String text, String newText) {
+            errors.reset();
+            watcher.update(newText);
+            reported = errors.toString(StandardCharsets.UTF_8);
+            if (!parses(newText)) {
+                return text;
+            }
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            OutputSink expectedOut = new OutputSink(expected, OutputSink.FlushPolicy.END);
+            String fresh = printed(new Watcher(expectedOut), newText, expected, expectedOut);
+            assertEquals(fresh, printed(watcher, null, bytes, out), newText);
+            return newText;
+        }
+    }
+
+    // what the watcher prints for the whole program, after the text if it is not null
+    private String printed(Watcher watcher, String text, ByteArrayOutputStream bytes, OutputSink out) {
+        if (text != null) {
+            watcher.update(text);
+        }
+        out.flush();
+        bytes.reset();
+        errors.reset();
+        watcher.printAll();
+        out.flush();
+        return bytes.toString(StandardCharsets.UTF_8) + errors.toString(StandardCharsets.UTF_8);
+    }
+
+    private static boolean parses(String text) {
+        try {
+            new Parser(new Lexer(text)).parse();
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private String program(int statements) {
+        StringBuilder program = new StringBuilder("var a 1\nvar b 2\nvar c 3\nvar d 4\n");
+        for (int i = 0; i < statements; i++) {
+            program.append(statement()).append(random.nextInt(6) == 0 ? " " : "\n");
+        }
+        return program.toString();
+    }
+
+    private String snippet() {
+        double choice = random.nextDouble();
+        if (choice < 0.6) {
+            return statement() + "\n";
+        } else if (choice < 0.75) {
+            return "\n" + statement();
+        }
+        StringBuilder snippet = new StringBuilder();
+        for (int i = random.nextInt(3); i >= 0; i--) {
+            snippet.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+        }
+        return snippet.toString();
+    }
+
+    private String statement() {
+        double choice = random.nextDouble();
+        String name = NAMES[random.nextInt(NAMES.length)];
+        if (choice < 0.25) {
+            return "var " + name + " " + expression();
+        } else if (choice < 0.5) {
+            return "set " + name + " " + expression();
+        } else if (choice < 0.85) {
+            return "output " + expression();
+        } else if (choice < 0.9) {
+            return "// note " + random.nextInt(9);
+        } else if (choice < 0.95) {
+            return "text word" + random.nextInt(9);
+        }
+        return "text \"t " + random.nextInt(9) + "\"";
+    }
+
+    // an operator with two operands, each an operator on two leaves or a leaf
+    private String expression() {
+        StringBuilder expression = new StringBuilder();
+        int leaves = 1;
+        while (leaves > 0) {
+            if (leaves < 3 && random.nextInt(3) > 0) {
+                if (random.nextInt(8) == 0) {
+                    expression.append(random.nextBoolean() ? "~ " : "! ");
+                } else {
+                    expression.append(OPERATORS[random.nextInt(OPERATORS.length)]).append(' ');
+                    leaves++;
+                }
+                continue;
+            }
+            double choice = random.nextDouble();
+            if (choice < 0.4) {
+                expression.append(random.nextInt(10));
+            } else if (choice < 0.42) {
+                expression.append("\"s").append(random.nextInt(2)).append('"');
+            } else {
+                expression.append(NAMES[random.nextInt(NAMES.length)]);
+            }
+            expression.append(' ');
+            leaves--;
+        }
+        return expression.toString().trim();
+    }
+}